@@ -0,0 +1,175 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+// deterministic synthetic catalogs: the same seed and settings always give the same products, ids included.
+// With skew > 0 categories, name words and product popularity follow a Zipf-like curve, so a few dominate
+// the way they do in a real shop; 0 keeps everything uniform (what the benchmarks use).
+class CatalogGenerator {
+
+    static final String[] ADJECTIVES = {
+            "compact", "wireless", "organic", "classic", "premium", "portable", "vintage", "smart",
+            "heavy", "light", "deluxe", "basic", "ultra", "mini", "family", "travel"
+    };
+    static final String[] NOUNS = {
+            "laptop", "headphones", "jacket", "coffee", "novel", "keyboard", "sneakers", "tea",
+            "cookbook", "monitor", "scarf", "chocolate", "atlas", "camera", "backpack", "honey",
+            "charger", "sweater", "pasta", "notebook", "speaker", "gloves", "olive oil", "dictionary"
+    };
+    static final String[] DETAILS = {
+            "ships in two days", "limited edition", "imported", "best seller", "eco friendly",
+            "gift wrapped", "new arrival", "locally made"
+    };
+    static final String[] SENTENCES = {
+            "Built to last through years of daily use.",
+            "Every unit is checked by hand before it leaves the warehouse.",
+            "Pairs well with the rest of the collection.",
+            "Returns are free within thirty days of delivery.",
+            "Customers rate it highly for value and comfort.",
+            "The packaging is fully recyclable.",
+            "Available in several sizes and colours while stock lasts.",
+            "Made from materials sourced from trusted suppliers."
+    };
+    static final String[] IMAGE_EXTENSIONS = { ".jpg", ".jpg", ".jpg", ".png", ".webp" };
+
+    private static final Category[] CATEGORIES = Category.values();
+
+    private final Random random;
+    private double skew;
+    private int descriptionSentences;
+    private double imageShare;
+
+    private ZipfSampler categorySampler;
+    private ZipfSampler adjectiveSampler;
+    private ZipfSampler nounSampler;
+
+    CatalogGenerator(long seed) {
+        this.random = new Random(seed);
+        setSkew(0);
+    }
+
+    // ~1.0 is a realistic long tail; must be set before generating
+    CatalogGenerator setSkew(double skew) {
+        this.skew = skew;
+        this.categorySampler = new ZipfSampler(CATEGORIES.length, skew);
+        this.adjectiveSampler = new ZipfSampler(ADJECTIVES.length, skew);
+        this.nounSampler = new ZipfSampler(NOUNS.length, skew);
+        return this;
+    }
+
+    // up to this many extra sentences after the short description
+    CatalogGenerator setDescriptionSentences(int sentences) {
+        this.descriptionSentences = sentences;
+        return this;
+    }
+
+    // fraction of products that get an images/<id>.<ext> path
+    CatalogGenerator setImageShare(double share) {
+        this.imageShare = share;
+        return this;
+    }
+
+    List<Product> products(int count, int minStock, int maxStock) {
+        List<Product> products = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            products.add(product(i, minStock, maxStock));
+        }
+        return products;
+    }
+
+    Product product(int serial, int minStock, int maxStock) {
+        ProductId id = ProductId.parse(new UUID(random.nextLong(), random.nextLong()).toString());
+        String name = ADJECTIVES[adjectiveSampler.next(random)] + " " + NOUNS[nounSampler.next(random)] + " " + serial;
+
+        StringBuilder description = new StringBuilder()
+                .append(pick(DETAILS)).append(", ").append(pick(ADJECTIVES)).append(' ').append(pick(NOUNS));
+        int sentences = descriptionSentences == 0 ? 0 : random.nextInt(descriptionSentences + 1);
+        if (sentences > 0) {
+            description.append('.');
+        }
+        for (int i = 0; i < sentences; i++) {
+            description.append(' ').append(pick(SENTENCES));
+        }
+
+        long priceCents = 99 + random.nextInt(250_000);
+        int stock = minStock + random.nextInt(maxStock - minStock + 1);
+        Product product = new Product(id, name, CATEGORIES[categorySampler.next(random)], priceCents, stock,
+                description.toString());
+        if (imageShare > 0 && random.nextDouble() < imageShare) {
+            product.setImagePath("images/" + id + pick(IMAGE_EXTENSIONS));
+        }
+        return product;
+    }
+
+    // what a customer types: a whole word, a 3-4 letter prefix of one, or a two-word phrase
+    String query() {
+        switch (random.nextInt(3)) {
+            case 0:
+                return NOUNS[nounSampler.next(random)];
+            case 1:
+                String word = NOUNS[nounSampler.next(random)];
+                return word.substring(0, Math.min(word.length(), 3 + random.nextInt(2)));
+            default:
+                return ADJECTIVES[adjectiveSampler.next(random)] + " " + NOUNS[nounSampler.next(random)];
+        }
+    }
+
+    Category category() {
+        return CATEGORIES[categorySampler.next(random)];
+    }
+
+    // a popularity sampler over n items with this generator's skew; rank 0 is the most popular
+    ZipfSampler popularity(int n) {
+        return new ZipfSampler(n, skew);
+    }
+
+    int sample(ZipfSampler sampler) {
+        return sampler.next(random);
+    }
+
+    int nextInt(int bound) {
+        return random.nextInt(bound);
+    }
+
+    double nextDouble() {
+        return random.nextDouble();
+    }
+
+    private <T> T pick(T[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    // P(rank k) proportional to 1 / (k + 1)^skew, drawn by binary search over the cumulative weights
+    static class ZipfSampler {
+
+        private final double[] cumulative;
+
+        ZipfSampler(int n, double skew) {
+            cumulative = new double[n];
+            double total = 0;
+            for (int k = 0; k < n; k++) {
+                total += 1 / Math.pow(k + 1, skew);
+                cumulative[k] = total;
+            }
+            for (int k = 0; k < n; k++) {
+                cumulative[k] /= total;
+            }
+        }
+
+        int next(Random random) {
+            double u = random.nextDouble();
+            int lo = 0;
+            int hi = cumulative.length - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cumulative[mid] < u) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+}
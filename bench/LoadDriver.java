@@ -0,0 +1,230 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Replays a mixed browse/search/add-to-cart/checkout workload against ProductService and CartService from many
+// threads, each acting as one customer with its own cart, and reports throughput and latency percentiles per
+// operation. Threads run closed-loop (no think time), so the numbers are what the core sustains flat out.
+//
+//   javac -d out src/Main.java bench/*.java
+//   java -cp out LoadDriver [--products 100000 | --catalog dir] [--threads 8] [--seconds 30] [--warmup 5]
+//                           [--mix browse=50,search=30,add=15,checkout=5] [--skew 1.0] [--seed 1]
+public class LoadDriver {
+
+    enum Op {
+        BROWSE, SEARCH, ADD, CHECKOUT
+    }
+
+    private static final int PAGE_SIZE = 50;
+    private static final int BROWSE_PAGES = 20;
+
+    private final ProductService productService;
+    private final ProductId[] ids;
+    private final CatalogGenerator.ZipfSampler popularity;
+    private final int[] mix;
+    private final double skew;
+
+    private volatile boolean running = true;
+    private volatile boolean measuring;
+    private final AtomicLong rejectedCheckouts = new AtomicLong();
+    private final AtomicLong resultsSeen = new AtomicLong();
+
+    LoadDriver(ProductService productService, int[] mix, double skew) {
+        this.productService = productService;
+        this.mix = mix;
+        this.skew = skew;
+
+        List<Product> products = productService.getAllProducts();
+        this.ids = new ProductId[products.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = products.get(i).getId();
+        }
+        this.popularity = new CatalogGenerator(0).setSkew(skew).popularity(ids.length);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int productCount = 100_000;
+        String catalogDir = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int seconds = 30;
+        int warmup = 5;
+        int[] mix = { 50, 30, 15, 5 };
+        double skew = 1.0;
+        long seed = 1;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--products":
+                    productCount = Integer.parseInt(args[++i].replace("_", ""));
+                    break;
+                case "--catalog":
+                    catalogDir = args[++i];
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(args[++i]);
+                    break;
+                case "--mix":
+                    mix = parseMix(args[++i]);
+                    break;
+                case "--skew":
+                    skew = Double.parseDouble(args[++i]);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        ProductService productService = new ProductService();
+        if (catalogDir != null) {
+            productService.loadFromFile(new ProductFileRepository(catalogDir + File.separator + Main.PRODUCTS_CSV));
+        } else {
+            CatalogGenerator generator = new CatalogGenerator(seed).setSkew(skew).setDescriptionSentences(3);
+            for (Product product : generator.products(productCount, 100, 10_000)) {
+                productService.addProduct(product);
+            }
+        }
+        System.out.printf("%d products (mapped=%s), %d threads, mix browse/search/add/checkout = %d/%d/%d/%d%n",
+                productService.getAllProducts().size(), productService.isMapped(), threads, mix[0], mix[1], mix[2], mix[3]);
+
+        new LoadDriver(productService, mix, skew).run(threads, warmup, seconds, seed);
+    }
+
+    void run(int threads, int warmupSeconds, int seconds, long seed) throws InterruptedException {
+        List<Worker> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Worker worker = new Worker(new Random(seed * 31 + t));
+            worker.setName("load-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+
+        Thread.sleep(warmupSeconds * 1000L);
+        measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        measuring = false;
+        long elapsed = System.nanoTime() - start;
+        running = false;
+        for (Worker worker : workers) {
+            worker.join();
+        }
+
+        report(workers, elapsed);
+    }
+
+    private void report(List<Worker> workers, long elapsedNanos) {
+        double elapsedSeconds = elapsedNanos / 1e9;
+        LatencyHistogram all = new LatencyHistogram();
+
+        System.out.println();
+        System.out.printf("%-10s %10s %12s %10s %10s %10s %10s%n", "op", "count", "ops/s", "p50 us", "p99 us", "p99.9 us", "max us");
+        for (Op op : Op.values()) {
+            LatencyHistogram merged = new LatencyHistogram();
+            for (Worker worker : workers) {
+                merged.merge(worker.latencies[op.ordinal()]);
+            }
+            all.merge(merged);
+            printRow(op.name().toLowerCase(), merged, elapsedSeconds);
+        }
+        printRow("all", all, elapsedSeconds);
+        System.out.println("rejected checkouts (out of stock): " + rejectedCheckouts.get());
+    }
+
+    private static void printRow(String name, LatencyHistogram histogram, double elapsedSeconds) {
+        System.out.printf("%-10s %10d %12.0f %10.1f %10.1f %10.1f %10.1f%n", name, histogram.getCount(),
+                histogram.getCount() / elapsedSeconds,
+                histogram.valueAtPercentile(50) / 1e3, histogram.valueAtPercentile(99) / 1e3,
+                histogram.valueAtPercentile(99.9) / 1e3, histogram.getMax() / 1e3);
+    }
+
+    // one customer: its own cart and random stream, its own histograms so recording doesn't contend
+    private class Worker extends Thread {
+
+        final LatencyHistogram[] latencies = new LatencyHistogram[Op.values().length];
+        private final Random random;
+        private final CatalogGenerator queries;
+        private final ShoppingCart cart = new ShoppingCart();
+        private final CartService cartService = new CartService(cart, productService);
+        private long consumed;
+
+        Worker(Random random) {
+            this.random = random;
+            this.queries = new CatalogGenerator(random.nextLong()).setSkew(skew);
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = new LatencyHistogram();
+            }
+        }
+
+        public void run() {
+            while (running) {
+                Op op = pick();
+                long start = System.nanoTime();
+                execute(op);
+                long latency = System.nanoTime() - start;
+                if (measuring) {
+                    latencies[op.ordinal()].record(latency);
+                }
+            }
+            // published so the JIT can't treat the results as unused
+            resultsSeen.addAndGet(consumed);
+        }
+
+        private Op pick() {
+            int roll = random.nextInt(mix[0] + mix[1] + mix[2] + mix[3]);
+            for (Op op : Op.values()) {
+                roll -= mix[op.ordinal()];
+                if (roll < 0) {
+                    return op;
+                }
+            }
+            return Op.BROWSE;
+        }
+
+        private void execute(Op op) {
+            switch (op) {
+                case BROWSE:
+                    Category category = random.nextBoolean() ? null : queries.category();
+                    consumed += productService.getProducts(category, random.nextInt(BROWSE_PAGES) * PAGE_SIZE,
+                            PAGE_SIZE, new int[1]).size();
+                    break;
+                case SEARCH:
+                    consumed += productService.filterProducts(queries.query(),
+                            random.nextInt(4) == 0 ? queries.category() : null).size();
+                    break;
+                case ADD:
+                    Product product = productService.findById(ids[popularity.next(random)]);
+                    if (product != null && cartService.addToCart(product, 1 + random.nextInt(2))) {
+                        consumed++;
+                    }
+                    break;
+                case CHECKOUT:
+                    if (!cart.isEmpty() && !cartService.checkout()) {
+                        rejectedCheckouts.incrementAndGet();
+                        cart.clear();
+                    }
+                    break;
+            }
+        }
+    }
+
+    private static int[] parseMix(String spec) {
+        int[] mix = new int[Op.values().length];
+        for (String part : spec.split(",")) {
+            String[] kv = part.split("=");
+            mix[Op.valueOf(kv[0].trim().toUpperCase()).ordinal()] = Integer.parseInt(kv[1].trim());
+        }
+        return mix;
+    }
+}
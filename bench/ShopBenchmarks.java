@@ -0,0 +1,323 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+// Benchmarks for the catalog, cart, search and persistence hot paths against synthetic catalogs.
+// The shop's classes are package-private in the default package, which JMH won't benchmark, so this is a
+// small self-contained harness instead: timed warmup and measurement iterations for fast operations,
+// single-shot runs for whole-file ones, and a result sink so the JIT can't drop the work.
+//
+//   gradle benchmarks [-Psizes=...] [-Psave=results.csv] [-Pbaseline=results.csv] [-Ptolerance=0.25]
+// or by hand:
+//   javac -d out src/Main.java bench/*.java
+//   java -Xmx4g -cp out ShopBenchmarks [--sizes 1000,100000,1000000] [--save results.csv]
+//                                      [--baseline results.csv] [--tolerance 0.25]
+//
+// With --baseline the run fails (exit code 1) if any benchmark is slower than the baseline by more than the
+// tolerance, so a saved run from main can gate a change.
+public class ShopBenchmarks {
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURE_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = 500_000_000L;
+    private static final int BATCH = 64;
+
+    // size of the product pool carts and checkouts draw from; mapped catalogs pin every product a checkout touches
+    private static final int HOT_PRODUCTS = 10_000;
+    private static final int CHECKOUT_LINES = 5;
+
+    private static long sink;
+
+    interface Op {
+        long run(int i) throws Exception;
+    }
+
+    static class Result {
+        final String name;
+        final int size;
+        final double nanosPerOp;
+        final double error;
+
+        Result(String name, int size, double nanosPerOp, double error) {
+            this.name = name;
+            this.size = size;
+            this.nanosPerOp = nanosPerOp;
+            this.error = error;
+        }
+
+        String key() {
+            return name + ";" + size;
+        }
+    }
+
+    private final List<Result> results = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = { 1_000, 100_000, 1_000_000 };
+        String savePath = null;
+        String baselinePath = null;
+        double tolerance = 0.25;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--sizes":
+                    String[] parts = args[++i].split(",");
+                    sizes = new int[parts.length];
+                    for (int j = 0; j < parts.length; j++) {
+                        sizes[j] = Integer.parseInt(parts[j].trim().replace("_", ""));
+                    }
+                    break;
+                case "--save":
+                    savePath = args[++i];
+                    break;
+                case "--baseline":
+                    baselinePath = args[++i];
+                    break;
+                case "--tolerance":
+                    tolerance = Double.parseDouble(args[++i]);
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        ShopBenchmarks benchmarks = new ShopBenchmarks();
+        for (int size : sizes) {
+            benchmarks.runAll(size);
+        }
+
+        if (savePath != null) {
+            benchmarks.save(savePath);
+        }
+        if (baselinePath != null && !benchmarks.compare(baselinePath, tolerance)) {
+            System.exit(1);
+        }
+        System.out.println("(sink " + sink + ")");
+    }
+
+    void runAll(int size) throws Exception {
+        System.out.println();
+        System.out.println("== " + size + " products ==");
+
+        Path dir = Files.createTempDirectory("shop-bench");
+        try {
+            String csvPath = dir.resolve("products.csv").toString();
+            ProductFileRepository repository = new ProductFileRepository(csvPath);
+
+            List<Product> generated = new CatalogGenerator(size).products(size, 1_000, 1_000_000);
+            int shots = Math.max(3, Math.min(20, 2_000_000 / size));
+
+            singleShot("saveProducts", size, shots, i -> {
+                repository.saveProducts(generated);
+                return new File(csvPath).length();
+            });
+            singleShot("loadProducts (bin)", size, shots, i -> repository.loadProducts().size());
+
+            File csv = new File(csvPath);
+            File bin = new File(dir.resolve("products.bin").toString());
+            bin.setLastModified(csv.lastModified() - 60_000);
+            singleShot("loadProducts (csv)", size, shots, i -> repository.loadProducts().size());
+            csv.setLastModified(bin.lastModified() - 60_000);
+
+            ProductService service = new ProductService();
+            service.loadFromFile(repository);
+            System.out.println("   catalog loaded, mapped=" + service.isMapped());
+
+            ProductId[] ids = new ProductId[size];
+            for (int i = 0; i < size; i++) {
+                ids[i] = generated.get(i).getId();
+            }
+            List<Product> hot = new ArrayList<>(generated.subList(0, Math.min(size, HOT_PRODUCTS)));
+            for (int i = 0; i < hot.size(); i++) {
+                hot.set(i, service.findById(hot.get(i).getId()));
+            }
+            generated.clear();
+
+            int[] order = shuffledIndexes(size, 7);
+            measure("findById", size, i -> service.findById(ids[order[i % size]]).getStock());
+
+            CatalogGenerator queries = new CatalogGenerator(11);
+            String[] texts = new String[256];
+            Category[] categories = new Category[256];
+            for (int i = 0; i < texts.length; i++) {
+                int kind = i % 3;
+                texts[i] = kind == 1 ? "" : queries.query();
+                categories[i] = kind == 0 ? null : queries.category();
+            }
+            ProductTableModel tableModel = new ProductTableModel(service, false);
+            measure("updateProductFilter", size, i -> {
+                int q = i & (texts.length - 1);
+                List<Product> matches = service.filterProducts(texts[q], categories[q]);
+                tableModel.showProducts(matches);
+                return tableModel.getRowCount();
+            });
+
+            int lines = hot.size();
+            ShoppingCart cart = new ShoppingCart();
+            for (Product product : hot) {
+                cart.addProduct(product, 1);
+            }
+            int[] cartOrder = shuffledIndexes(lines, 13);
+            measure("ShoppingCart.addProduct+getTotalPrice (" + lines + " lines)", size, i -> {
+                cart.addProduct(hot.get(cartOrder[i % lines]), 1);
+                return cart.getTotalPriceCents();
+            });
+
+            // each op restocks what it sold so the catalog never runs dry; no journal is attached
+            measure("CartService.checkout (" + CHECKOUT_LINES + " lines)", size, i -> {
+                ShoppingCart basket = new ShoppingCart();
+                for (int k = 0; k < CHECKOUT_LINES; k++) {
+                    basket.addProduct(hot.get(cartOrder[((i % lines) * CHECKOUT_LINES + k) % lines]), 1);
+                }
+                List<CartItem> sold = new ArrayList<>(basket.getItems());
+                if (!new CartService(basket, service).checkout()) {
+                    throw new IllegalStateException("checkout failed");
+                }
+                for (CartItem item : sold) {
+                    service.findForUpdate(item.getProduct().getId()).increaseStock(item.getQuantity());
+                }
+                return sold.size();
+            });
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    // ops run in batches until the iteration's time is up; the score is mean ns/op over the measured iterations
+    void measure(String name, int size, Op op) throws Exception {
+        double[] scores = new double[MEASURE_ITERATIONS];
+        int counter = 0;
+        for (int iteration = 0; iteration < WARMUP_ITERATIONS + MEASURE_ITERATIONS; iteration++) {
+            long ops = 0;
+            long acc = 0;
+            long start = System.nanoTime();
+            long deadline = start + ITERATION_NANOS;
+            long now;
+            do {
+                for (int k = 0; k < BATCH; k++) {
+                    acc += op.run(counter++ & Integer.MAX_VALUE);
+                }
+                ops += BATCH;
+                now = System.nanoTime();
+            } while (now < deadline);
+            sink += acc;
+
+            if (iteration >= WARMUP_ITERATIONS) {
+                scores[iteration - WARMUP_ITERATIONS] = (double) (now - start) / ops;
+            }
+        }
+        record(name, size, scores);
+    }
+
+    // for operations that take milliseconds or more: one warmup run, then each run timed on its own
+    void singleShot(String name, int size, int runs, Op op) throws Exception {
+        sink += op.run(0);
+        double[] scores = new double[runs];
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            sink += op.run(i + 1);
+            scores[i] = System.nanoTime() - start;
+        }
+        record(name, size, scores);
+    }
+
+    private void record(String name, int size, double[] scores) {
+        double mean = 0;
+        for (double score : scores) {
+            mean += score;
+        }
+        mean /= scores.length;
+
+        double variance = 0;
+        for (double score : scores) {
+            variance += (score - mean) * (score - mean);
+        }
+        double error = scores.length > 1 ? Math.sqrt(variance / (scores.length - 1)) : 0;
+
+        results.add(new Result(name, size, mean, error));
+        System.out.printf("   %-52s %14s +- %s%n", name, formatNanos(mean), formatNanos(error));
+    }
+
+    void save(String path) throws IOException {
+        try (PrintWriter out = new PrintWriter(path, StandardCharsets.UTF_8)) {
+            out.println("benchmark;size;ns_per_op;error");
+            for (Result result : results) {
+                out.println(result.key() + ";" + result.nanosPerOp + ";" + result.error);
+            }
+        }
+        System.out.println("Saved results to " + path);
+    }
+
+    // true when nothing regressed by more than the tolerance; benchmarks missing from either side are skipped
+    boolean compare(String baselinePath, double tolerance) throws IOException {
+        Map<String, Double> baseline = new HashMap<>();
+        List<String> lines = Files.readAllLines(new File(baselinePath).toPath(), StandardCharsets.UTF_8);
+        for (String line : lines.subList(Math.min(1, lines.size()), lines.size())) {
+            String[] parts = line.split(";");
+            if (parts.length >= 3) {
+                baseline.put(parts[0] + ";" + parts[1], Double.parseDouble(parts[2]));
+            }
+        }
+
+        System.out.println();
+        System.out.println("== compared with " + baselinePath + " (tolerance " + Math.round(tolerance * 100) + "%) ==");
+        boolean passed = true;
+        for (Result result : results) {
+            Double before = baseline.get(result.key());
+            if (before == null) {
+                continue;
+            }
+            double change = result.nanosPerOp / before - 1;
+            boolean regressed = change > tolerance;
+            passed &= !regressed;
+            System.out.printf("   %-52s %8d %+7.1f%%%s%n", result.name, result.size, change * 100,
+                    regressed ? "  REGRESSION" : "");
+        }
+        System.out.println(passed ? "No regressions" : "Regressions found");
+        return passed;
+    }
+
+    private static int[] shuffledIndexes(int n, long seed) {
+        int[] indexes = new int[n];
+        for (int i = 0; i < n; i++) {
+            indexes[i] = i;
+        }
+        CatalogGenerator random = new CatalogGenerator(seed);
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = indexes[i];
+            indexes[i] = indexes[j];
+            indexes[j] = t;
+        }
+        return indexes;
+    }
+
+    private static String formatNanos(double nanos) {
+        if (nanos >= 1e9) {
+            return String.format("%.2f s", nanos / 1e9);
+        }
+        if (nanos >= 1e6) {
+            return String.format("%.2f ms", nanos / 1e6);
+        }
+        if (nanos >= 1e3) {
+            return String.format("%.2f us", nanos / 1e3);
+        }
+        return String.format("%.1f ns", nanos);
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,90 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Writes a synthetic shop of any size: products.csv (+ products.bin, as the app saves it), cart.csv, and
+// optionally per-user carts under carts/. Names, categories and cart contents are skewed toward a popular
+// few; descriptions run to several sentences and most products get an image path.
+//
+//   javac -d out src/Main.java bench/*.java
+//   java -cp out ShopDataGenerator [--products 100000] [--users 0] [--out .] [--seed 1] [--skew 1.0]
+public class ShopDataGenerator {
+
+    // most carts are small, a few bulk orders are large
+    private static final int MAX_CART_LINES = 200;
+
+    public static void main(String[] args) throws Exception {
+        int productCount = 100_000;
+        int users = 0;
+        String out = ".";
+        long seed = 1;
+        double skew = 1.0;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--products":
+                    productCount = Integer.parseInt(args[++i].replace("_", ""));
+                    break;
+                case "--users":
+                    users = Integer.parseInt(args[++i].replace("_", ""));
+                    break;
+                case "--out":
+                    out = args[++i];
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                case "--skew":
+                    skew = Double.parseDouble(args[++i]);
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        Files.createDirectories(Paths.get(out));
+        CatalogGenerator generator = new CatalogGenerator(seed)
+                .setSkew(skew)
+                .setDescriptionSentences(6)
+                .setImageShare(0.8);
+
+        long start = System.nanoTime();
+        List<Product> products = generator.products(productCount, 0, 500);
+        new ProductFileRepository(out + File.separator + Main.PRODUCTS_CSV).saveProducts(products);
+
+        CatalogGenerator.ZipfSampler popularity = generator.popularity(products.size());
+        new CartFileRepository(out + File.separator + Main.CART_CSV).saveQuantities(cart(generator, popularity, products));
+
+        if (users > 0) {
+            String dir = out + File.separator + CartStore.DEFAULT_DIR;
+            Files.createDirectories(Paths.get(dir));
+            for (int u = 0; u < users; u++) {
+                String file = dir + File.separator + CartStore.fileName("user" + u);
+                new CartFileRepository(file).saveQuantities(cart(generator, popularity, products));
+            }
+        }
+
+        System.out.printf("Generated %d products and %d carts in %s (%.1f s)%n",
+                productCount, users + 1, new File(out).getAbsolutePath(), (System.nanoTime() - start) / 1e9);
+    }
+
+    private static Map<ProductId, Integer> cart(CatalogGenerator generator, CatalogGenerator.ZipfSampler popularity,
+                                                List<Product> products) {
+        // geometric number of lines: mostly a few, averaging four, with a thin tail up to MAX_CART_LINES
+        int lines = 1;
+        while (lines < MAX_CART_LINES && generator.nextDouble() < 0.75) {
+            lines++;
+        }
+
+        Map<ProductId, Integer> quantities = new LinkedHashMap<>();
+        for (int i = 0; i < lines; i++) {
+            Product product = products.get(generator.sample(popularity));
+            quantities.merge(product.getId(), 1 + generator.nextInt(3), Integer::sum);
+        }
+        return quantities;
+    }
+}
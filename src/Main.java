@@ -1,12 +1,26 @@
 import java.util.UUID;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Collections;
+import java.util.Collection;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.EnumMap;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.function.ToIntFunction;
+import java.util.function.BooleanSupplier;
 import java.io.*;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import javax.swing.table.DefaultTableModel;
+import javax.swing.table.AbstractTableModel;
 import java.io.File;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
@@ -17,46 +31,162 @@ import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
+import javax.imageio.ImageIO;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.lang.management.ManagementFactory;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
 
 public class Main {
 
     public static final String PRODUCTS_CSV = "products.csv";
+    // before carts were kept per user there was a single cart file; it is moved into the first customer's cart
     public static final String CART_CSV = "cart.csv";
 
     public static void main(String[] args) {
 
-        ProductService productService = new ProductService();
-        ProductFileRepository repository = new ProductFileRepository(PRODUCTS_CSV);
-        CartFileRepository cartRepository = new CartFileRepository(CART_CSV);
+        Metrics.start();
+        ShopCore core = new ShopCore(PRODUCTS_CSV, CartStore.DEFAULT_DIR, CART_CSV);
 
+        if (args.length > 0 && args[0].equals("--server")) {
+            runServer(core, args);
+            return;
+        }
 
-        productService.loadFromFile(repository);
+        ProductService productService = core.getProductService();
 
+        EdtWatchdog watchdog = EdtWatchdog.install();
 
         MainFrame frame = new MainFrame();
 
-        LoginPanel loginPanel = new LoginPanel(frame);
-        AdminPanel adminPanel = new AdminPanel(productService, repository);
-        CustomerPanel customerPanel = new CustomerPanel(productService, repository, cartRepository);
+        AdminPanel adminPanel = new AdminPanel(productService, core.getPersistence());
+        CustomerPanel customerPanel = new CustomerPanel(productService, core.getCarts(), core.getPersistence());
+        LoginPanel loginPanel = new LoginPanel(frame, customerPanel);
 
         frame.addPanel(loginPanel, MainFrame.LOGIN);
         frame.addPanel(adminPanel, MainFrame.ADMIN);
         frame.addPanel(customerPanel, MainFrame.CUSTOMER);
 
         frame.showPanel(MainFrame.LOGIN);
+        core.getPersistence().setDialogParent(frame);
 
         frame.addWindowListener(new WindowAdapter() {
             public void windowClosing(WindowEvent e) {
 
-                productService.saveToFile(repository);
-                cartRepository.saveCart(customerPanel.getShoppingCart());
+                // the final flush: whatever the cart flusher hasn't written yet is written here
+                if (core.isLoaded()) {
+                    core.save();
+                }
+                Metrics.dump();
+                if (watchdog != null) {
+                    System.out.print(watchdog.report());
+                }
 
                 System.exit(0);
             }
         });
 
+        loginPanel.setLoading(true);
         frame.setVisible(true);
 
+        new SwingWorker<Void, Void>() {
+            protected Void doInBackground() {
+                core.load();
+                return null;
+            }
+
+            protected void done() {
+                try {
+                    get();
+                } catch (Exception ex) {
+                    System.out.println("Error loading catalog: " + ex.getMessage());
+                }
+
+                customerPanel.catalogLoaded();
+                loginPanel.setLoading(false);
+            }
+        }.execute();
+
+    }
+
+    // headless: no frame, the catalog is served over HTTP until the process is stopped
+    private static void runServer(ShopCore core, String[] args) {
+        int port = ShopServer.DEFAULT_PORT;
+        if (args.length > 1) {
+            try {
+                port = Integer.parseInt(args[1]);
+            } catch (NumberFormatException e) {
+                System.out.println("Error: invalid port '" + args[1] + "'");
+                return;
+            }
+        }
+
+        core.load();
+
+        ShopServer server = new ShopServer(core);
+        try {
+            server.start(port);
+        } catch (IOException e) {
+            System.out.println("Error starting server: " + e.getMessage());
+            return;
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                server.stop();
+                core.save();
+                Metrics.dump();
+            }
+        }, "shop-shutdown"));
     }
 }
 enum Category {
@@ -67,47 +197,262 @@ enum Category {
     GENERAL
 }
 
+// a product id held as two longs. Canonical lowercase UUID text (every id this app generates) is packed
+// into the bits; anything else is kept as its original text so it still round-trips unchanged.
+final class ProductId {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long hi;
+    private final long lo;
+    private final String text;
+
+    private ProductId(long hi, long lo, String text) {
+        this.hi = hi;
+        this.lo = lo;
+        this.text = text;
+    }
+
+    public static ProductId random() {
+        UUID uuid = UUID.randomUUID();
+        return new ProductId(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), null);
+    }
+
+    public static ProductId parse(CharSequence s) {
+        if (s.length() == 36) {
+            long hi = 0;
+            long lo = 0;
+            int digits = 0;
+            for (int i = 0; i < 36; i++) {
+                char c = s.charAt(i);
+                if (i == 8 || i == 13 || i == 18 || i == 23) {
+                    if (c != '-') {
+                        return new ProductId(0, 0, s.toString());
+                    }
+                    continue;
+                }
+                int v = hexValue(c);
+                if (v < 0) {
+                    return new ProductId(0, 0, s.toString());
+                }
+                if (digits++ < 16) {
+                    hi = hi << 4 | v;
+                } else {
+                    lo = lo << 4 | v;
+                }
+            }
+            return new ProductId(hi, lo, null);
+        }
+        return new ProductId(0, 0, s.toString());
+    }
+
+    // straight from UTF-8 bytes (CSV lines, the mapped catalog) without an intermediate String
+    public static ProductId parse(byte[] b, int from, int to) {
+        if (to - from == 36) {
+            long hi = 0;
+            long lo = 0;
+            int digits = 0;
+            boolean canonical = true;
+            for (int i = 0; i < 36 && canonical; i++) {
+                int c = b[from + i];
+                if (i == 8 || i == 13 || i == 18 || i == 23) {
+                    canonical = c == '-';
+                    continue;
+                }
+                int v = hexValue((char) c);
+                canonical = v >= 0;
+                if (digits++ < 16) {
+                    hi = hi << 4 | v;
+                } else {
+                    lo = lo << 4 | v;
+                }
+            }
+            if (canonical) {
+                return new ProductId(hi, lo, null);
+            }
+        }
+        return new ProductId(0, 0, new String(b, from, to - from, StandardCharsets.UTF_8));
+    }
+
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ProductId)) {
+            return false;
+        }
+        ProductId other = (ProductId) o;
+        if (text != null || other.text != null) {
+            return text != null && text.equals(other.text);
+        }
+        return hi == other.hi && lo == other.lo;
+    }
+
+    public int hashCode() {
+        if (text != null) {
+            return text.hashCode();
+        }
+        long h = hi * 0x9E3779B97F4A7C15L ^ lo;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    public String toString() {
+        if (text != null) {
+            return text;
+        }
+        char[] out = new char[36];
+        int pos = 0;
+        for (int i = 0; i < 32; i++) {
+            if (i == 8 || i == 12 || i == 16 || i == 20) {
+                out[pos++] = '-';
+            }
+            long half = i < 16 ? hi : lo;
+            out[pos++] = HEX[(int) (half >>> (60 - 4 * (i % 16))) & 0xF];
+        }
+        return new String(out);
+    }
+
+    // uppercase hex is not canonical: it would not print back the same way
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+}
+
+// money as long minor units (cents). Only static helpers, so prices and running totals stay plain longs.
+final class Money {
+
+    private Money() {
+    }
+
+    // "25", "25.5", "25.50"; a third fraction digit rounds half up, anything else (e.g. 1.0E7) goes to BigDecimal
+    public static long parse(byte[] b, int from, int to) {
+        if (from == to) {
+            return Long.MIN_VALUE;
+        }
+
+        boolean negative = b[from] == '-';
+        int i = negative || b[from] == '+' ? from + 1 : from;
+
+        long units = 0;
+        int digits = 0;
+        int fraction = -1;
+        boolean roundUp = false;
+        for (; i < to; i++) {
+            byte c = b[i];
+            if (c == '.' && fraction < 0) {
+                fraction = 0;
+                continue;
+            }
+            if (c < '0' || c > '9' || digits >= 16) {
+                return parseSlow(b, from, to);
+            }
+            if (fraction >= 2) {
+                if (fraction == 2) {
+                    roundUp = c >= '5';
+                }
+                fraction++;
+                continue;
+            }
+            units = units * 10 + (c - '0');
+            digits++;
+            if (fraction >= 0) {
+                fraction++;
+            }
+        }
+        if (digits == 0) {
+            return Long.MIN_VALUE;
+        }
+
+        for (int f = Math.max(fraction, 0); f < 2; f++) {
+            units *= 10;
+        }
+        if (roundUp) {
+            units++;
+        }
+        return negative ? -units : units;
+    }
+
+    public static long parse(String text) {
+        byte[] b = text.trim().getBytes(StandardCharsets.US_ASCII);
+        long cents = parse(b, 0, b.length);
+        if (cents == Long.MIN_VALUE) {
+            throw new NumberFormatException("invalid amount '" + text + "'");
+        }
+        return cents;
+    }
+
+    public static long times(long cents, int quantity) {
+        return Math.multiplyExact(cents, (long) quantity);
+    }
+
+    public static String format(long cents) {
+        long abs = Math.abs(cents);
+        long fraction = abs % 100;
+        return (cents < 0 ? "-" : "") + abs / 100 + (fraction < 10 ? ".0" : ".") + fraction;
+    }
+
+    private static long parseSlow(byte[] b, int from, int to) {
+        try {
+            return new BigDecimal(new String(b, from, to - from, StandardCharsets.US_ASCII))
+                    .movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValueExact();
+        } catch (NumberFormatException | ArithmeticException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+}
+
 class Product {
-    private String id;
+    private ProductId id;
     private String name;
     private Category category;
-    private double price;
-    private int stock;
+    private long priceCents;
+    // concurrent checkouts reserve stock with compare-and-set instead of locking
+    private final AtomicInteger stock;
     private String description;
     private String imagePath;
 
-    public Product(String name, Category category, double price, int stock, String description) {
-        this.id = UUID.randomUUID().toString();
+    public Product(String name, Category category, long priceCents, int stock, String description) {
+        this.id = ProductId.random();
         this.name = name;
         this.category = category;
-        this.price = price;
-        this.stock = stock;
+        this.priceCents = priceCents;
+        this.stock = new AtomicInteger(stock);
         this.description = description;
     }
 
     // Constructor dovom baraye vaghti Product az file miad va id avaz shode
-    public Product(String id, String name, Category category, double price, int stock, String description) {
+    public Product(ProductId id, String name, Category category, long priceCents, int stock, String description) {
         this.id = id;
         this.name = name;
         this.category = category;
-        this.price = price;
-        this.stock = stock;
+        this.priceCents = priceCents;
+        this.stock = new AtomicInteger(stock);
         this.description = description;
     }
 
     public void increaseStock(int amount) {
-        stock += amount;
+        stock.addAndGet(amount);
     }
 
     public boolean decreaseStock(int amount) {
-        if (amount > stock) {
-            return false;
+        while (true) {
+            int current = stock.get();
+            if (amount > current) {
+                return false;
+            }
+            if (stock.compareAndSet(current, current - amount)) {
+                return true;
+            }
         }
-        stock -= amount;
-        return true;
     }
 
-    public String getId() {
+    public ProductId getId() {
         return id;
     }
 
@@ -119,12 +464,12 @@ class Product {
         return category;
     }
 
-    public double getPrice() {
-        return price;
+    public long getPriceCents() {
+        return priceCents;
     }
 
     public int getStock() {
-        return stock;
+        return stock.get();
     }
 
     public String getDescription() {
@@ -143,9 +488,9 @@ class Product {
 
     public void setCategory(Category category) { this.category = category; }
 
-    public void setPrice(double price) { this.price = price; }
+    public void setPriceCents(long priceCents) { this.priceCents = priceCents; }
 
-    public void setStock(int stock) { this.stock = stock; }
+    public void setStock(int stock) { this.stock.set(stock); }
 
     public void setDescription(String description) { this.description = description; }
 }
@@ -154,10 +499,13 @@ class CartItem {
 
     private Product product;
     private int quantity;
+    // the price this line is counted at in the cart total; follows the product through ShoppingCart.repriceProduct
+    private long unitPriceCents;
 
     public CartItem(Product product, int quantity) {
         this.product = product;
         this.quantity = quantity;
+        this.unitPriceCents = product.getPriceCents();
     }
 
     public Product getProduct() {
@@ -183,21 +531,39 @@ class CartItem {
         }
     }
 
-    public double getTotalPrice() {
-        return product.getPrice() * quantity;
+    public long getUnitPriceCents() {
+        return unitPriceCents;
+    }
+
+    void setUnitPriceCents(long unitPriceCents) {
+        this.unitPriceCents = unitPriceCents;
+    }
+
+    public long getTotalPriceCents() {
+        return Money.times(unitPriceCents, quantity);
     }
 }
 
 class ShoppingCart {
 
-    private List<CartItem> items;
+    // keyed by product id in insertion order, so every mutation is a single lookup
+    private final Map<ProductId, CartItem> items;
+    private final Collection<CartItem> itemsView;
+
+    // exact running total; each line keeps the unit price it was counted at so a price edit is applied as a delta
+    private long totalPriceCents;
 
     public ShoppingCart() {
-        items = new ArrayList<>();
+        items = new LinkedHashMap<>();
+        itemsView = Collections.unmodifiableCollection(items.values());
+    }
+
+    public Collection<CartItem> getItems() {
+        return itemsView;
     }
 
-    public List<CartItem> getItems() {
-        return items;
+    public CartItem getItem(ProductId productId) {
+        return items.get(productId);
     }
 
     public void addProduct(Product product, int quantity) {
@@ -205,23 +571,22 @@ class ShoppingCart {
             return;
         }
 
-        for (CartItem item : items) {
-            if (item.getProduct().getId().equals(product.getId())) {
-                item.increaseQuantity(quantity);
-                return;
-            }
+        CartItem item = items.get(product.getId());
+        if (item != null) {
+            item.increaseQuantity(quantity);
+            totalPriceCents += Money.times(item.getUnitPriceCents(), quantity);
+            return;
         }
 
-        items.add(new CartItem(product, quantity));
+        item = new CartItem(product, quantity);
+        items.put(product.getId(), item);
+        totalPriceCents += item.getTotalPriceCents();
     }
 
     public void removeProduct(Product product) {
-        for (int i = 0; i < items.size(); i++) {
-            CartItem item = items.get(i);
-            if (item.getProduct().getId().equals(product.getId())) {
-                items.remove(i);
-                break;
-            }
+        CartItem item = items.remove(product.getId());
+        if (item != null) {
+            totalPriceCents -= item.getTotalPriceCents();
         }
     }
 
@@ -230,27 +595,42 @@ class ShoppingCart {
             return;
         }
 
-        for (CartItem item : items) {
-            if (item.getProduct().getId().equals(product.getId())) {
-                item.decreaseQuantity(quantity);
-                if (item.getQuantity() == 0) {
-                    removeProduct(product);
-                }
-                return;
-            }
+        CartItem item = items.get(product.getId());
+        if (item == null) {
+            return;
+        }
+
+        int before = item.getQuantity();
+        item.decreaseQuantity(quantity);
+        totalPriceCents -= Money.times(item.getUnitPriceCents(), before - item.getQuantity());
+        if (item.getQuantity() == 0) {
+            items.remove(product.getId());
         }
     }
 
-    public double getTotalPrice() {
-        double total = 0;
-        for (CartItem item : items) {
-            total += item.getTotalPrice();
+    // called when a product's price is edited while it sits in the cart
+    public void repriceProduct(Product product) {
+        CartItem item = items.get(product.getId());
+        if (item == null) {
+            return;
         }
-        return total;
+
+        totalPriceCents += Money.times(product.getPriceCents() - item.getUnitPriceCents(), item.getQuantity());
+        item.setUnitPriceCents(product.getPriceCents());
+    }
+
+    public int getQuantity(Product product) {
+        CartItem item = items.get(product.getId());
+        return item == null ? 0 : item.getQuantity();
+    }
+
+    public long getTotalPriceCents() {
+        return totalPriceCents;
     }
 
     public void clear() {
         items.clear();
+        totalPriceCents = 0;
     }
 
     public boolean isEmpty() {
@@ -308,239 +688,4346 @@ class Administrator extends User {
     }
 }
 
-class ProductService {
+// written only under the ProductService lock and read without it. The rows are published as an immutable
+// (array, size) pair; appends and in-place replacements never move a row. A removal shifts rows before their
+// positions are updated, so a lookup checks the row it finds and, if the position was stale, looks next to it
+// and then scans its snapshot rather than waiting for the writer. version changes on every shift.
+class ProductCatalog {
 
-    private List<Product> products;
+    private static final class Rows {
+        final Product[] items;
+        final int size;
 
-    public ProductService() {
-        products = new ArrayList<>();
+        Rows(Product[] items, int size) {
+            this.items = items;
+            this.size = size;
+        }
     }
 
-    public void addProduct(Product product) {
-        products.add(product);
+    private volatile Rows rows;
+    private volatile int version;
+    private volatile Map<ProductId, Integer> positions;
+    private final List<Product> view;
+
+    public ProductCatalog() {
+        rows = new Rows(new Product[16], 0);
+        positions = new ConcurrentHashMap<>();
+        view = new RowsView();
     }
 
-    public void removeProductById(String productId) {
-        for (int i = 0; i < products.size(); i++) {
-            if (products.get(i).getId().equals(productId)) {
-                products.remove(i);
-                break;
-            }
+    public void add(Product product) {
+        Rows current = rows;
+        Integer pos = positions.get(product.getId());
+        if (pos != null) {
+            current.items[pos] = product;
+            return;
+        }
+        Product[] items = current.size == current.items.length
+                ? Arrays.copyOf(current.items, current.size * 2) : current.items;
+        items[current.size] = product;
+        rows = new Rows(items, current.size + 1);
+        positions.put(product.getId(), current.size);
+    }
+
+    public Product remove(ProductId productId) {
+        Integer pos = positions.get(productId);
+        if (pos == null) {
+            return null;
+        }
+
+        version++;
+        Rows current = rows;
+        Product removed = current.items[pos];
+        Product[] items = new Product[current.items.length];
+        System.arraycopy(current.items, 0, items, 0, pos);
+        System.arraycopy(current.items, pos + 1, items, pos, current.size - pos - 1);
+        rows = new Rows(items, current.size - 1);
+        positions.remove(productId);
+        for (int i = pos; i < current.size - 1; i++) {
+            positions.put(items[i].getId(), i);
         }
+        version++;
+        return removed;
+    }
+
+    public Product get(ProductId productId) {
+        Rows current = rows;
+        int pos = locate(current, productId);
+        return pos >= 0 ? current.items[pos] : null;
+    }
+
+    public int indexOf(ProductId productId) {
+        return locate(rows, productId);
     }
 
-    public Product findById(String productId) {
-        for (Product product : products) {
-            if (product.getId().equals(productId)) {
-                return product;
+    private int locate(Rows current, ProductId productId) {
+        Integer pos = positions.get(productId);
+        if (pos == null) {
+            return -1;
+        }
+        for (int i = Math.max(0, pos - 1); i <= pos + 1 && i < current.size; i++) {
+            if (current.items[i].getId().equals(productId)) {
+                return i;
             }
         }
-        return null;
+        for (int i = 0; i < current.size; i++) {
+            if (current.items[i].getId().equals(productId)) {
+                return i;
+            }
+        }
+        return -1;
     }
 
-    public List<Product> getAllProducts() {
-        return products;
+    // the product at a position, or null past the end; pair with version() to notice a shift in between
+    public Product productAt(int pos) {
+        Rows current = rows;
+        return pos < current.size ? current.items[pos] : null;
     }
 
-    public void loadFromFile(ProductFileRepository repository) {
-        products = repository.loadProducts();
+    public int version() {
+        return version;
     }
 
-    public void saveToFile(ProductFileRepository repository) {
-        repository.saveProducts(products);
+    public void replaceAll(List<Product> newProducts) {
+        version++;
+        Product[] items = new Product[Math.max(16, newProducts.size())];
+        Map<ProductId, Integer> positions = new ConcurrentHashMap<>();
+        int size = 0;
+        for (Product product : newProducts) {
+            Integer pos = positions.putIfAbsent(product.getId(), size);
+            if (pos != null) {
+                items[pos] = product;
+            } else {
+                items[size++] = product;
+            }
+        }
+        rows = new Rows(items, size);
+        this.positions = positions;
+        version++;
     }
 
-    public void setProductImage(String productId, String imagePath) {
-        Product product = findById(productId);
-        if (product != null) {
-            product.setImagePath(imagePath);
+    public int size() {
+        return rows.size;
+    }
+
+    public List<Product> asList() {
+        return view;
+    }
+
+    private class RowsView extends AbstractList<Product> implements RandomAccess {
+
+        public Product get(int index) {
+            Rows current = rows;
+            if (index >= current.size) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + current.size);
+            }
+            return current.items[index];
+        }
+
+        public int size() {
+            return rows.size;
         }
     }
 }
 
-class CartService {
+class ProductSearchIndex {
+
+    private static final int NAME_MATCH = 100;
+    private static final int NAME_PREFIX_BONUS = 50;
+    private static final int TOKEN_PREFIX_BONUS = 25;
+    private static final int DESCRIPTION_MATCH = 10;
+    static final int MAX_SCORE = NAME_MATCH + NAME_PREFIX_BONUS;
+
+    // every add gets a new int doc number; postings hold doc numbers in ascending order. Removed docs
+    // stay in the postings until dead docs outnumber live ones, then everything is re-posted into a new State.
+    //
+    // Only the writer (ProductService, under its lock) touches docNumbers and deadDocs. Searches take no lock:
+    // a State only grows, each doc and posting is written before the count that covers it, and a search keeps
+    // to the docs counted when it started, so it reads a fixed snapshot even while products are added.
+    private final Map<ProductId, Integer> docNumbers;
+    private volatile State state;
+    private int deadDocs;
+
+    private static final class State {
+        volatile Doc[] docs = new Doc[16];
+        volatile int docCount;
+
+        // trigram postings (plus every 1 and 2 char substring, for short queries) for each field, keys packed into a long
+        final Map<Long, Postings> namePostings = new ConcurrentHashMap<>();
+        final Map<Long, Postings> descriptionPostings = new ConcurrentHashMap<>();
+    }
 
-    private ShoppingCart cart;
-    private ProductService productService;
+    // normalized text is kept once per doc to verify candidates without re-lowercasing; a removed doc's slot is null
+    private static final class Doc {
+        final ProductId id;
+        final String name;
+        final String description;
 
-    public CartService(ShoppingCart cart, ProductService productService) {
-        this.cart = cart;
-        this.productService = productService;
+        Doc(ProductId id, String name, String description) {
+            this.id = id;
+            this.name = name;
+            this.description = description;
+        }
     }
 
-    public void addToCart(Product product, int quantity) {
-        if (product.getStock() >= quantity) {
-            cart.addProduct(product, quantity);
+    public ProductSearchIndex() {
+        docNumbers = new HashMap<>();
+        state = new State();
+    }
+
+    public void add(Product product) {
+        remove(product.getId());
+        add(state, new Doc(product.getId(), normalize(product.getName()), normalize(product.getDescription())));
+    }
+
+    public void remove(ProductId productId) {
+        Integer doc = docNumbers.remove(productId);
+        if (doc == null) {
+            return;
+        }
+        state.docs[doc] = null;
+        deadDocs++;
+
+        if (deadDocs > docNumbers.size()) {
+            compact();
         }
     }
 
-    public void removeFromCart(Product product) {
-        cart.removeProduct(product);
+    public void clear() {
+        docNumbers.clear();
+        state = new State();
+        deadDocs = 0;
+    }
+
+    // catalog positions of products whose name or description contains the query, best matches first and equal
+    // scores in catalog order; position maps a product to its place in the catalog, or -1 to leave it out
+    public int[] search(String query, ToIntFunction<ProductId> position) {
+        String q = normalize(query);
+        if (q.isEmpty()) {
+            return new int[0];
+        }
+
+        State snapshot = state;
+        int count = snapshot.docCount;
+        Doc[] docs = snapshot.docs;
+
+        int[] scores = new int[count];
+        for (int doc : matches(snapshot.namePostings, docs, count, q, true)) {
+            Doc match = docs[doc];
+            if (match != null) {
+                scores[doc] = nameScore(match.name, q);
+            }
+        }
+        for (int doc : matches(snapshot.descriptionPostings, docs, count, q, false)) {
+            if (scores[doc] == 0) {
+                scores[doc] = DESCRIPTION_MATCH;
+            }
+        }
+
+        // (MAX_SCORE - score) << 32 | position sorts best first, then by position
+        long[] keys = new long[64];
+        int n = 0;
+        for (int doc = 0; doc < count; doc++) {
+            Doc match = scores[doc] > 0 ? docs[doc] : null;
+            int pos = match == null ? -1 : position.applyAsInt(match.id);
+            if (pos >= 0) {
+                if (n == keys.length) {
+                    keys = Arrays.copyOf(keys, n * 2);
+                }
+                keys[n++] = (long) (MAX_SCORE - scores[doc]) << 32 | pos;
+            }
+        }
+        Arrays.sort(keys, 0, n);
+
+        int[] positions = new int[n];
+        for (int i = 0; i < n; i++) {
+            positions[i] = (int) keys[i];
+        }
+        return positions;
     }
 
-    public double getTotalPrice() {
-        return cart.getTotalPrice();
+    // the score search() gives normalized name and description text for a normalized query, 0 if neither matches
+    static int score(String name, String description, String q) {
+        if (name.contains(q)) {
+            return nameScore(name, q);
+        }
+        return description.contains(q) ? DESCRIPTION_MATCH : 0;
     }
 
-    public boolean checkout(ProductFileRepository repository) {
-        if (cart.isEmpty()) {
-            return false;
+    private static int nameScore(String name, String q) {
+        int score = NAME_MATCH;
+        if (name.startsWith(q)) {
+            score += NAME_PREFIX_BONUS;
+        } else if (startsToken(name, q)) {
+            score += TOKEN_PREFIX_BONUS;
         }
+        return score;
+    }
 
-        for (CartItem item : cart.getItems()) {
-            Product product = item.getProduct();
-            int quantity = item.getQuantity();
+    private void add(State target, Doc entry) {
+        int doc = target.docCount;
+        if (doc == target.docs.length) {
+            target.docs = Arrays.copyOf(target.docs, doc * 2);
+        }
+        target.docs[doc] = entry;
+        post(target.namePostings, entry.name, doc);
+        post(target.descriptionPostings, entry.description, doc);
+        docNumbers.put(entry.id, doc);
+        target.docCount = doc + 1;
+    }
 
-            if (product.getStock() < quantity) {
-                return false;
+    private void compact() {
+        State old = state;
+        State fresh = new State();
+        docNumbers.clear();
+        for (int i = 0; i < old.docCount; i++) {
+            if (old.docs[i] != null) {
+                add(fresh, old.docs[i]);
             }
         }
+        deadDocs = 0;
+        state = fresh;
+    }
 
-        for (CartItem item : cart.getItems()) {
-            Product product = item.getProduct();
-            product.decreaseStock(item.getQuantity());
+    // live docs below count whose name (or description) contains q
+    private static int[] matches(Map<Long, Postings> postings, Doc[] docs, int count, String q, boolean names) {
+        int[] result = new int[16];
+        int n = 0;
+
+        // a 1-2 char query is itself a posted key, so its postings are exactly the docs containing it;
+        // otherwise walk the rarest trigram's postings and verify the full substring
+        boolean exact = q.length() < 3;
+        Postings candidates = null;
+        if (exact) {
+            candidates = postings.get(shortKey(q, 0, q.length()));
+        } else {
+            for (int i = 0; i + 3 <= q.length(); i++) {
+                Postings trigram = postings.get(trigramKey(q, i));
+                if (trigram == null) {
+                    return new int[0];
+                }
+                if (candidates == null || trigram.size < candidates.size) {
+                    candidates = trigram;
+                }
+            }
+        }
+        if (candidates == null) {
+            return new int[0];
         }
 
-        cart.clear();
+        int size = candidates.size;
+        int[] posted = candidates.docs;
+        for (int i = 0; i < size && posted[i] < count; i++) {
+            Doc doc = docs[posted[i]];
+            if (doc != null && (exact || (names ? doc.name : doc.description).contains(q))) {
+                if (n == result.length) {
+                    result = Arrays.copyOf(result, n * 2);
+                }
+                result[n++] = posted[i];
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
 
-        productService.saveToFile(repository);
+    private static void post(Map<Long, Postings> postings, String text, int doc) {
+        for (int i = 0; i < text.length(); i++) {
+            postings.computeIfAbsent(shortKey(text, i, 1), k -> new Postings()).add(doc);
+            if (i + 2 <= text.length()) {
+                postings.computeIfAbsent(shortKey(text, i, 2), k -> new Postings()).add(doc);
+            }
+            if (i + 3 <= text.length()) {
+                postings.computeIfAbsent(trigramKey(text, i), k -> new Postings()).add(doc);
+            }
+        }
+    }
 
-        return true;
+    // ascending doc numbers; a doc that repeats a trigram is only stored once. Written by one thread; the
+    // array is replaced before size covers the new doc, so a reader that reads size first stays in bounds.
+    private static class Postings {
+
+        volatile int[] docs = new int[4];
+        volatile int size;
+
+        void add(int doc) {
+            int n = size;
+            if (n > 0 && docs[n - 1] == doc) {
+                return;
+            }
+            if (n == docs.length) {
+                docs = Arrays.copyOf(docs, n * 2);
+            }
+            docs[n] = doc;
+            size = n + 1;
+        }
+    }
+
+    private static long trigramKey(String text, int i) {
+        return ((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2);
+    }
+
+    // 1-2 char keys carry a marker bit so they never collide with trigram keys
+    private static long shortKey(String text, int from, int length) {
+        long key = 1L << 48 | (long) length << 40;
+        for (int i = 0; i < length; i++) {
+            key |= (long) text.charAt(from + i) << (16 * (1 - i));
+        }
+        return key;
+    }
+
+    private static boolean startsToken(String text, String q) {
+        int from = 0;
+        while ((from = text.indexOf(q, from)) >= 0) {
+            if (from == 0 || !Character.isLetterOrDigit(text.charAt(from - 1))) {
+                return true;
+            }
+            from++;
+        }
+        return false;
+    }
+
+    static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        return text.trim().toLowerCase();
     }
 }
 
-class ProductFileRepository {
+interface ProductCatalogListener {
 
-    private final String filePath;
+    void productAdded(Product product, int index);
 
-    public ProductFileRepository(String filePath) {
-        this.filePath = filePath;
+    void productRemoved(Product product, int index);
+
+    void productUpdated(Product product);
+
+    void catalogReloaded();
+}
+
+// changes are synchronized; lookups and searches read the catalog and search index without the lock, so a long
+// query on the search worker never holds up the EDT
+class ProductService {
+
+    private static final LatencyHistogram FIND_BY_ID_TIME = Metrics.timer("catalog.findById");
+    private static final LatencyHistogram FILTER_TIME = Metrics.timer("catalog.filter");
+    private static final LatencyHistogram LOAD_TIME = Metrics.timer("catalog.load");
+    private static final LatencyHistogram SAVE_TIME = Metrics.timer("catalog.save");
+
+    private final ProductCatalog catalog;
+
+    // secondary indexes, both keyed to product ids and updated on every add/remove/edit
+    private final Map<Category, Set<ProductId>> categoryIndex;
+    private final NavigableMap<Long, Set<ProductId>> priceIndex;
+    private final ProductSearchIndex searchIndex;
+
+    // set when a huge products.bin is used in place; the heap catalog and indexes stay empty then
+    private volatile MappedProductCatalog mapped;
+
+    // the instances stock changes went through, read without the lock; only written under it
+    private final Map<ProductId, Product> live;
+
+    // copy-on-write so stock notifications can run outside the lock
+    private final List<ProductCatalogListener> listeners;
+
+    public ProductService() {
+        catalog = new ProductCatalog();
+        categoryIndex = new EnumMap<>(Category.class);
+        for (Category category : Category.values()) {
+            categoryIndex.put(category, new HashSet<>());
+        }
+        priceIndex = new TreeMap<>();
+        searchIndex = new ProductSearchIndex();
+        live = new ConcurrentHashMap<>();
+        listeners = new CopyOnWriteArrayList<>();
+    }
+
+    public synchronized void addCatalogListener(ProductCatalogListener listener) {
+        listeners.add(listener);
+    }
+
+    public synchronized void addProduct(Product product) {
+        if (mapped != null) {
+            boolean existed = mapped.indexOf(product.getId()) >= 0;
+            int index = mapped.put(product);
+            live.remove(product.getId());
+            for (ProductCatalogListener listener : listeners) {
+                if (existed) {
+                    listener.productUpdated(product);
+                } else {
+                    listener.productAdded(product, index);
+                }
+            }
+            return;
+        }
+
+        Product previous = catalog.get(product.getId());
+        if (previous != null) {
+            unindex(previous);
+        }
+        catalog.add(product);
+        live.remove(product.getId());
+        index(product);
+
+        for (ProductCatalogListener listener : listeners) {
+            if (previous != null) {
+                listener.productUpdated(product);
+            } else {
+                listener.productAdded(product, catalog.size() - 1);
+            }
+        }
+    }
+
+    public synchronized void removeProductById(ProductId productId) {
+        if (mapped != null) {
+            // only marks the record deleted; the catalog stays mapped
+            int index = mapped.indexOf(productId);
+            if (index >= 0) {
+                Product removed = mapped.get(index);
+                mapped.remove(index);
+                live.remove(productId);
+                for (ProductCatalogListener listener : listeners) {
+                    listener.productRemoved(removed, index);
+                }
+            }
+            return;
+        }
+
+        int index = catalog.indexOf(productId);
+        Product removed = catalog.remove(productId);
+        live.remove(productId);
+        if (removed != null) {
+            unindex(removed);
+            for (ProductCatalogListener listener : listeners) {
+                listener.productRemoved(removed, index);
+            }
+        }
+    }
+
+    public synchronized void updateProduct(Product product, String name, Category category, long priceCents, int stock,
+                                           String description, String imagePath) {
+        if (mapped == null) {
+            unindex(product);
+        }
+
+        product.setName(name);
+        product.setCategory(category);
+        product.setPriceCents(priceCents);
+        product.setStock(stock);
+        product.setDescription(description);
+        product.setImagePath(imagePath);
+
+        if (mapped == null) {
+            index(product);
+        }
+        productChanged(product);
+    }
+
+    // for changes that don't touch the indexes, e.g. stock after a checkout; an instance from
+    // findForUpdate is already the catalog's own, so checkouts notify without taking the lock
+    public void productChanged(Product product) {
+        if (live.get(product.getId()) != product) {
+            synchronized (this) {
+                if (mapped != null && mapped.indexOf(product.getId()) >= 0) {
+                    mapped.put(product);
+                    live.remove(product.getId());
+                }
+            }
+        }
+        for (ProductCatalogListener listener : listeners) {
+            listener.productUpdated(product);
+        }
+    }
+
+    public Product findById(ProductId productId) {
+        long start = System.nanoTime();
+        try {
+            MappedProductCatalog current = mapped;
+            if (current != null) {
+                int index = current.indexOf(productId);
+                return index < 0 ? null : current.get(index);
+            }
+            return catalog.get(productId);
+        } finally {
+            FIND_BY_ID_TIME.record(System.nanoTime() - start);
+        }
+    }
+
+    // the single instance stock changes must go through; in mapped mode a cart may hold an older copy.
+    // after the first lookup it comes from the live map, so concurrent checkouts don't queue on the lock
+    public Product findForUpdate(ProductId productId) {
+        Product product = live.get(productId);
+        return product != null ? product : resolveForUpdate(productId);
+    }
+
+    private synchronized Product resolveForUpdate(ProductId productId) {
+        Product product;
+        if (mapped != null) {
+            int index = mapped.indexOf(productId);
+            product = index < 0 ? null : mapped.pin(index);
+        } else {
+            product = catalog.get(productId);
+        }
+        if (product != null) {
+            live.put(productId, product);
+        }
+        return product;
+    }
+
+    public List<Product> getAllProducts() {
+        MappedProductCatalog current = mapped;
+        return current != null ? current.asList() : catalog.asList();
+    }
+
+    // a copied page of the catalog (or of one category); total[0] receives the unpaged count
+    public synchronized List<Product> getProducts(Category category, int offset, int limit, int[] total) {
+        List<Product> source = category == null ? getAllProducts() : findByCategory(category);
+        total[0] = source.size();
+        int from = Math.min(Math.max(offset, 0), source.size());
+        int to = Math.min(from + Math.max(limit, 0), source.size());
+        return new ArrayList<>(source.subList(from, to));
+    }
+
+    public int indexOf(ProductId productId) {
+        MappedProductCatalog current = mapped;
+        return current != null ? current.indexOf(productId) : catalog.indexOf(productId);
+    }
+
+    public synchronized List<Product> findByCategory(Category category) {
+        if (mapped != null) {
+            return mapped.findByCategory(category);
+        }
+        return inCatalogOrder(categoryIndex.get(category));
+    }
+
+    public synchronized List<Product> findByPriceRange(long minCents, long maxCents) {
+        if (mapped != null) {
+            return mapped.findByPriceRange(minCents, maxCents);
+        }
+        List<ProductId> ids = new ArrayList<>();
+        for (Set<ProductId> bucket : priceIndex.subMap(minCents, true, maxCents, true).values()) {
+            ids.addAll(bucket);
+        }
+        return inCatalogOrder(ids);
+    }
+
+    public synchronized List<Product> findProducts(Category category, long minCents, long maxCents) {
+        if (category == null) {
+            return findByPriceRange(minCents, maxCents);
+        }
+
+        List<Product> result = new ArrayList<>();
+        for (Product product : findByCategory(category)) {
+            if (product.getPriceCents() >= minCents && product.getPriceCents() <= maxCents) {
+                result.add(product);
+            }
+        }
+        return result;
+    }
+
+    // what the customer's search box and category filter show: ranked matches, one category, or everything
+    public List<Product> filterProducts(String query, Category category) {
+        return filterProducts(query, category, () -> false);
+    }
+
+    // cancelled is checked once the matches are ranked, so a superseded search skips building its result
+    public List<Product> filterProducts(String query, Category category, BooleanSupplier cancelled) {
+        long start = System.nanoTime();
+        try {
+            if (!query.isEmpty()) {
+                return search(query, category, cancelled);
+            } else if (category != null) {
+                return findByCategory(category);
+            }
+            return getAllProducts();
+        } finally {
+            FILTER_TIME.record(System.nanoTime() - start);
+        }
+    }
+
+    public List<Product> search(String query, Category category) {
+        return search(query, category, () -> false);
+    }
+
+    // ranked name/description matches, optionally restricted to one category, found without the lock: the heap
+    // index is searched in place, and a mapped catalog (which has no index) is scanned. Positions are turned
+    // back into products only if no removal shifted the catalog meanwhile; if one did, the search runs once
+    // more under the lock, so a stream of deletes can't starve it.
+    public List<Product> search(String query, Category category, BooleanSupplier cancelled) {
+        MappedProductCatalog scanned = mapped;
+        if (scanned != null) {
+            return scanned.search(query, category, cancelled);
+        }
+        List<Product> result = rankedProducts(query, category, cancelled);
+        if (result != null) {
+            return result;
+        }
+        synchronized (this) {
+            return mapped != null ? mapped.search(query, category, cancelled) : rankedProducts(query, category, cancelled);
+        }
+    }
+
+    // null if a removal shifted catalog positions while ranking
+    private List<Product> rankedProducts(String query, Category category, BooleanSupplier cancelled) {
+        int version = catalog.version();
+        int[] ranked = searchIndex.search(query, catalog::indexOf);
+        if (cancelled.getAsBoolean()) {
+            return new ArrayList<>();
+        }
+        List<Product> result = new ArrayList<>();
+        for (int pos : ranked) {
+            Product product = catalog.productAt(pos);
+            if (product != null && (category == null || product.getCategory() == category)) {
+                result.add(product);
+            }
+        }
+        return (version & 1) == 0 && catalog.version() == version ? result : null;
+    }
+
+    public synchronized void loadFromFile(ProductFileRepository repository) {
+        long start = System.nanoTime();
+        mapped = repository.openMapped();
+        live.clear();
+        catalog.replaceAll(mapped != null ? Collections.<Product>emptyList() : repository.loadProducts());
+        rebuildIndexes();
+        LOAD_TIME.record(System.nanoTime() - start);
+
+        for (ProductCatalogListener listener : listeners) {
+            listener.catalogReloaded();
+        }
+    }
+
+    // the catalog is captured under the lock and written without it, so searches aren't held up by the write;
+    // a mapped one only copies its edited and added products, the rest is read from the mapping as it is written
+    public boolean saveToFile(ProductFileRepository repository) {
+        long start = System.nanoTime();
+        try {
+            List<Product> products;
+            synchronized (this) {
+                products = mapped != null ? mapped.snapshot() : new ArrayList<>(catalog.asList());
+            }
+            return repository.saveProducts(products);
+        } finally {
+            SAVE_TIME.record(System.nanoTime() - start);
+        }
+    }
+
+    public int size() {
+        MappedProductCatalog current = mapped;
+        return current != null ? current.size() : catalog.size();
+    }
+
+    public boolean isMapped() {
+        return mapped != null;
+    }
+
+    public synchronized void setProductImage(ProductId productId, String imagePath) {
+        Product product = findById(productId);
+        if (product != null) {
+            product.setImagePath(imagePath);
+            productChanged(product);
+        }
+    }
+
+    private void index(Product product) {
+        categoryIndex.get(product.getCategory()).add(product.getId());
+        priceIndex.computeIfAbsent(product.getPriceCents(), k -> new HashSet<>()).add(product.getId());
+        searchIndex.add(product);
+    }
+
+    private void unindex(Product product) {
+        categoryIndex.get(product.getCategory()).remove(product.getId());
+        searchIndex.remove(product.getId());
+
+        Set<ProductId> bucket = priceIndex.get(product.getPriceCents());
+        if (bucket != null) {
+            bucket.remove(product.getId());
+            if (bucket.isEmpty()) {
+                priceIndex.remove(product.getPriceCents());
+            }
+        }
+    }
+
+    private void rebuildIndexes() {
+        for (Set<ProductId> bucket : categoryIndex.values()) {
+            bucket.clear();
+        }
+        priceIndex.clear();
+        searchIndex.clear();
+
+        for (Product product : catalog.asList()) {
+            index(product);
+        }
+    }
+
+    // results follow the catalog order so filtered tables look like the full one
+    private List<Product> inCatalogOrder(Collection<ProductId> ids) {
+        int[] positions = new int[ids.size()];
+        int count = 0;
+        for (ProductId id : ids) {
+            int pos = catalog.indexOf(id);
+            if (pos >= 0) {
+                positions[count++] = pos;
+            }
+        }
+        Arrays.sort(positions, 0, count);
+
+        List<Product> all = catalog.asList();
+        List<Product> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(all.get(positions[i]));
+        }
+        return result;
+    }
+}
+
+// products.bin opened in place: records stay in the mapped file and become Product objects only when
+// something asks for them. Changed or added products are kept on the heap as an overlay.
+class MappedProductCatalog {
+
+    private static final int CACHE_SIZE = 4096;
+    private static final int MIN_SCAN_CHUNK = 64 * 1024;
+
+    // lowercase of each ASCII char, usable on raw bytes only if toLowerCase() keeps every one of them ASCII
+    private static final byte[] ASCII_LOWER = new byte[128];
+    private static final boolean ASCII_FOLDS;
+
+    static {
+        boolean folds = true;
+        for (int c = 0; c < 128; c++) {
+            String lower = String.valueOf((char) c).toLowerCase();
+            folds &= lower.length() == 1 && lower.charAt(0) < 128;
+            ASCII_LOWER[c] = (byte) lower.charAt(0);
+        }
+        ASCII_FOLDS = folds;
+    }
+
+    private final MappedByteBuffer buffer;
+    private final int count;
+
+    // open-addressing id -> record table, off-heap; a slot holds record index + 1, 0 = empty
+    private final ByteBuffer idTable;
+    private final int idMask;
+
+    // keyed by record index: file records first, then added ones. Rows are the records that aren't deleted,
+    // in record order, so a delete only marks its record instead of moving the rest.
+    private final Map<Integer, Product> pinned;
+    private final List<Product> added;
+    private final Map<ProductId, Integer> addedIds;
+    private final LinkedHashMap<Integer, Product> cache;
+    private final List<Product> view;
+
+    // deleted record indices, ascending; replaced rather than changed, so a copy of the reference is a snapshot
+    private int[] deleted;
+
+    private MappedProductCatalog(MappedByteBuffer buffer, int count) {
+        this.buffer = buffer;
+        this.count = count;
+
+        int slots = Integer.highestOneBit(Math.max(count, 1) * 2 - 1) << 1;
+        this.idTable = ByteBuffer.allocateDirect(slots * 4);
+        this.idMask = slots - 1;
+        for (int i = 0; i < count; i++) {
+            int slot = hashRecordId(i) & idMask;
+            while (idTable.getInt(slot * 4) != 0) {
+                slot = (slot + 1) & idMask;
+            }
+            idTable.putInt(slot * 4, i + 1);
+        }
+
+        this.pinned = new HashMap<>();
+        this.added = new ArrayList<>();
+        this.addedIds = new HashMap<>();
+        this.cache = new LinkedHashMap<Integer, Product>(CACHE_SIZE, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Integer, Product> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+        this.view = new IndexedView(null);
+        this.deleted = new int[0];
+    }
+
+    public static MappedProductCatalog open(String filePath) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(filePath + " is too large to map");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int count = BinaryCatalogFile.readHeader(buffer, filePath);
+            BinaryCatalogFile.checkRecords(buffer, count, filePath);
+            return new MappedProductCatalog(buffer, count);
+        }
+    }
+
+    public synchronized int size() {
+        return count + added.size() - deleted.length;
+    }
+
+    public synchronized Product get(int index) {
+        return product(recordOf(deleted, index));
+    }
+
+    public synchronized int indexOf(ProductId productId) {
+        int record = liveRecord(productId);
+        return record < 0 ? -1 : rowOf(deleted, record);
+    }
+
+    // the instance get() returns, held from now on so stock taken from it can't be dropped with the cache
+    public synchronized Product pin(int index) {
+        int record = recordOf(deleted, index);
+        Product product = product(record);
+        if (record < count) {
+            pinned.put(record, product);
+            cache.remove(record);
+        }
+        return product;
+    }
+
+    // keeps this instance as the product from now on, so edits and stock changes are never lost to the cache
+    public synchronized int put(Product product) {
+        int record = liveRecord(product.getId());
+        if (record < 0) {
+            record = count + added.size();
+            added.add(product);
+            addedIds.put(product.getId(), record);
+        } else if (record >= count) {
+            added.set(record - count, product);
+        } else {
+            pinned.put(record, product);
+            cache.remove(record);
+        }
+        return rowOf(deleted, record);
+    }
+
+    // marks the row's record deleted; the rows after it move up by one without anything being copied
+    public synchronized void remove(int index) {
+        int record = recordOf(deleted, index);
+        int at = -Arrays.binarySearch(deleted, record) - 1;
+        int[] marked = new int[deleted.length + 1];
+        System.arraycopy(deleted, 0, marked, 0, at);
+        marked[at] = record;
+        System.arraycopy(deleted, at, marked, at + 1, deleted.length - at);
+        deleted = marked;
+        pinned.remove(record);
+        cache.remove(record);
+    }
+
+    public List<Product> asList() {
+        return view;
+    }
+
+    // the catalog as of now, for writing it out: the edited and added products are copied under the lock,
+    // the rest is decoded from the read-only mapping on each get() without locking or caching
+    public List<Product> snapshot() {
+        synchronized (this) {
+            return new Snapshot(new HashMap<>(pinned), new ArrayList<>(added), deleted);
+        }
+    }
+
+    // the scans below read the fixed-width columns straight from the file
+    public synchronized List<Product> findByCategory(Category category) {
+        int records = count + added.size();
+        int[] matches = new int[size()];
+        int n = 0;
+        int nextDeleted = 0;
+        for (int i = 0; i < records; i++) {
+            if (nextDeleted < deleted.length && deleted[nextDeleted] == i) {
+                nextDeleted++;
+                continue;
+            }
+            Product product = overlay(i);
+            Category c = product != null ? product.getCategory() : BinaryCatalogFile.categoryAt(buffer, count, i);
+            if (c == category) {
+                matches[n++] = i;
+            }
+        }
+        return new IndexedView(Arrays.copyOf(matches, n));
+    }
+
+    public synchronized List<Product> findByPriceRange(long minCents, long maxCents) {
+        int records = count + added.size();
+        int[] matches = new int[size()];
+        int n = 0;
+        int nextDeleted = 0;
+        for (int i = 0; i < records; i++) {
+            if (nextDeleted < deleted.length && deleted[nextDeleted] == i) {
+                nextDeleted++;
+                continue;
+            }
+            Product product = overlay(i);
+            long price = product != null ? product.getPriceCents() : BinaryCatalogFile.priceAt(buffer, count, i);
+            if (price >= minCents && price <= maxCents) {
+                matches[n++] = i;
+            }
+        }
+        return new IndexedView(Arrays.copyOf(matches, n));
+    }
+
+    // ranked like ProductSearchIndex.search, ties in catalog order. The file part of the mapping never
+    // changes, so only the edited and added products are copied under the lock and the scan runs without it.
+    public List<Product> search(String query, Category category, BooleanSupplier cancelled) {
+        String q = ProductSearchIndex.normalize(query);
+        if (q.isEmpty()) {
+            return new IndexedView(new int[0]);
+        }
+        Map<Integer, Product> edited;
+        List<Product> extra;
+        int[] gone;
+        synchronized (this) {
+            edited = new HashMap<>(pinned);
+            extra = new ArrayList<>(added);
+            gone = deleted;
+        }
+        byte[] asciiQuery = isAscii(q) ? q.getBytes(StandardCharsets.US_ASCII) : null;
+
+        // ranges of records are scanned in parallel, like ChunkedCatalogLoader parses the CSV
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int size = count + extra.size();
+        int chunks = Math.max(1, Math.min(pool.getParallelism() * 4, size / MIN_SCAN_CHUNK));
+        List<ForkJoinTask<long[]>> tasks = new ArrayList<>();
+        for (int i = 0; i < chunks; i++) {
+            int from = (int) ((long) size * i / chunks);
+            int to = (int) ((long) size * (i + 1) / chunks);
+            tasks.add(pool.submit(new Callable<long[]>() {
+                public long[] call() {
+                    return scan(from, to, q, asciiQuery, category, edited, extra, gone);
+                }
+            }));
+        }
+
+        List<long[]> parts = new ArrayList<>();
+        int total = 0;
+        for (ForkJoinTask<long[]> task : tasks) {
+            parts.add(task.join());
+            total += parts.get(parts.size() - 1).length;
+        }
+        if (cancelled.getAsBoolean()) {
+            return new IndexedView(new int[0]);
+        }
+        long[] hits = new long[total];
+        int n = 0;
+        for (long[] part : parts) {
+            System.arraycopy(part, 0, hits, n, part.length);
+            n += part.length;
+        }
+        Arrays.sort(hits);
+
+        int[] matches = new int[hits.length];
+        for (int i = 0; i < hits.length; i++) {
+            matches[i] = (int) hits[i];
+        }
+        return new IndexedView(matches, true);
+    }
+
+    // (MAX_SCORE - score) << 32 | record for each match in [from, to), which sorts best first, then by position
+    private long[] scan(int from, int to, String q, byte[] asciiQuery, Category category,
+                        Map<Integer, Product> edited, List<Product> extra, int[] gone) {
+        long[] hits = new long[64];
+        int n = 0;
+        int nextDeleted = Arrays.binarySearch(gone, from);
+        if (nextDeleted < 0) {
+            nextDeleted = -nextDeleted - 1;
+        }
+        for (int i = from; i < to; i++) {
+            if (nextDeleted < gone.length && gone[nextDeleted] == i) {
+                nextDeleted++;
+                continue;
+            }
+            Product product = i >= count ? extra.get(i - count) : edited.get(i);
+            Category c = product != null ? product.getCategory() : BinaryCatalogFile.categoryAt(buffer, count, i);
+            if (category != null && c != category) {
+                continue;
+            }
+            int score = product != null
+                    ? ProductSearchIndex.score(ProductSearchIndex.normalize(product.getName()),
+                            ProductSearchIndex.normalize(product.getDescription()), q)
+                    : recordScore(i, q, asciiQuery);
+            if (score > 0) {
+                if (n == hits.length) {
+                    hits = Arrays.copyOf(hits, n * 2);
+                }
+                hits[n++] = (long) (ProductSearchIndex.MAX_SCORE - score) << 32 | i;
+            }
+        }
+        return Arrays.copyOf(hits, n);
+    }
+
+    private Product overlay(int record) {
+        return record >= count ? added.get(record - count) : pinned.get(record);
+    }
+
+    private Product product(int record) {
+        if (record >= count) {
+            return added.get(record - count);
+        }
+        Product product = pinned.get(record);
+        if (product == null) {
+            product = cache.get(record);
+        }
+        if (product == null) {
+            product = BinaryCatalogFile.readProduct(buffer, count, record);
+            cache.put(record, product);
+        }
+        return product;
+    }
+
+    // the record holding this id, deleted or not; an id added again after a delete maps to its newest record
+    private int record(ProductId productId) {
+        Integer addedRecord = addedIds.get(productId);
+        if (addedRecord != null) {
+            return addedRecord;
+        }
+
+        int slot = mix(productId.hashCode()) & idMask;
+        int entry;
+        while ((entry = idTable.getInt(slot * 4)) != 0) {
+            if (recordId(entry - 1).equals(productId)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & idMask;
+        }
+        return -1;
+    }
+
+    private int liveRecord(ProductId productId) {
+        int record = record(productId);
+        return record < 0 || Arrays.binarySearch(deleted, record) >= 0 ? -1 : record;
+    }
+
+    // row r is record r + k, where k is the number of deleted records before it
+    private static int recordOf(int[] deleted, int row) {
+        int low = 0;
+        int high = deleted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (deleted[mid] - mid <= row) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return row + low;
+    }
+
+    // the row of a record that isn't deleted
+    private static int rowOf(int[] deleted, int record) {
+        return record + Arrays.binarySearch(deleted, record) + 1;
+    }
+
+    // plain ASCII records are ruled out on the raw bytes; only possible matches are decoded and scored
+    private int recordScore(int index, String q, byte[] asciiQuery) {
+        int offset = BinaryCatalogFile.recordOffset(buffer, index);
+        int nameAt = offset + 4 + Math.max(buffer.getInt(offset), 0);
+        int descriptionAt = nameAt + 4 + Math.max(buffer.getInt(nameAt), 0);
+
+        if (ASCII_FOLDS && isAscii(nameAt) && isAscii(descriptionAt)) {
+            if (asciiQuery == null || !containsFolded(nameAt, asciiQuery) && !containsFolded(descriptionAt, asciiQuery)) {
+                return 0;
+            }
+        }
+        return ProductSearchIndex.score(ProductSearchIndex.normalize(text(nameAt)),
+                ProductSearchIndex.normalize(text(descriptionAt)), q);
+    }
+
+    // the length-prefixed string at this offset, null for a missing one
+    private String text(int at) {
+        int length = buffer.getInt(at);
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(at + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private boolean isAscii(int at) {
+        int length = buffer.getInt(at);
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(at + 4 + i) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 128) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // q is already lowercase; a match can't involve the whitespace normalize() trims, since q has none at its ends
+    private boolean containsFolded(int at, byte[] q) {
+        int from = at + 4;
+        int length = buffer.getInt(at);
+        for (int start = 0; start + q.length <= length; start++) {
+            int j = 0;
+            while (j < q.length && ASCII_LOWER[buffer.get(from + start + j)] == q[j]) {
+                j++;
+            }
+            if (j == q.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int hashRecordId(int index) {
+        return mix(recordId(index).hashCode());
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private ProductId recordId(int index) {
+        int offset = BinaryCatalogFile.recordOffset(buffer, index);
+        int length = buffer.getInt(offset);
+        byte[] bytes = new byte[length];
+        buffer.get(offset + 4, bytes);
+        return ProductId.parse(bytes, 0, length);
+    }
+
+    private class Snapshot extends AbstractList<Product> implements RandomAccess {
+
+        private final Map<Integer, Product> edited;
+        private final List<Product> extra;
+        private final int[] gone;
+
+        Snapshot(Map<Integer, Product> edited, List<Product> extra, int[] gone) {
+            this.edited = edited;
+            this.extra = extra;
+            this.gone = gone;
+        }
+
+        public Product get(int index) {
+            int record = recordOf(gone, index);
+            if (record >= count) {
+                return extra.get(record - count);
+            }
+            Product product = edited.get(record);
+            return product != null ? product : BinaryCatalogFile.readProduct(buffer, count, record);
+        }
+
+        public int size() {
+            return count + extra.size() - gone.length;
+        }
+    }
+
+    // a list over record indices (or the whole catalog when indices is null) that materializes on get()
+    class IndexedView extends AbstractList<Product> implements RandomAccess {
+
+        private final int[] indices;
+        private final boolean ranked;
+
+        // for a ranked view: (record << 32 | row) sorted, built the first time rowOf needs it
+        private long[] rowsByIndex;
+
+        IndexedView(int[] indices) {
+            this(indices, false);
+        }
+
+        IndexedView(int[] indices, boolean ranked) {
+            this.indices = indices;
+            this.ranked = ranked;
+        }
+
+        public Product get(int row) {
+            if (indices == null) {
+                return MappedProductCatalog.this.get(row);
+            }
+            synchronized (MappedProductCatalog.this) {
+                return product(indices[row]);
+            }
+        }
+
+        public int size() {
+            return indices == null ? MappedProductCatalog.this.size() : indices.length;
+        }
+
+        // row of a product in this view, -1 if it isn't part of it. A product deleted since the view was made
+        // is still found, so the view's owner can take its row out.
+        public int rowOf(ProductId productId) {
+            if (indices == null) {
+                return indexOf(productId);
+            }
+            int catalogIndex;
+            synchronized (MappedProductCatalog.this) {
+                catalogIndex = record(productId);
+            }
+            if (catalogIndex < 0) {
+                return -1;
+            }
+            if (!ranked) {
+                int row = Arrays.binarySearch(indices, catalogIndex);
+                return row < 0 ? -1 : row;
+            }
+
+            if (rowsByIndex == null) {
+                long[] pairs = new long[indices.length];
+                for (int row = 0; row < indices.length; row++) {
+                    pairs[row] = (long) indices[row] << 32 | row;
+                }
+                Arrays.sort(pairs);
+                rowsByIndex = pairs;
+            }
+            int at = Arrays.binarySearch(rowsByIndex, (long) catalogIndex << 32);
+            if (at < 0) {
+                at = -at - 1;
+            }
+            return at < rowsByIndex.length && (int) (rowsByIndex[at] >>> 32) == catalogIndex ? (int) rowsByIndex[at] : -1;
+        }
+    }
+}
+
+// all-or-nothing stock reservation. Each line is taken with a CAS on that product's own stock, so checkouts
+// on different products never contend; if a later line runs short, the lines already taken are handed back.
+class InventoryService {
+
+    private final ProductService productService;
+
+    public InventoryService(ProductService productService) {
+        this.productService = productService;
+    }
+
+    // the products whose stock was taken, or null (and nothing taken) when any line can't be filled
+    public List<Product> reserve(Collection<CartItem> items) {
+        List<Product> taken = new ArrayList<>(items.size());
+        List<Integer> quantities = new ArrayList<>(items.size());
+
+        for (CartItem item : items) {
+            Product product = productService.findForUpdate(item.getProduct().getId());
+            if (product == null || !product.decreaseStock(item.getQuantity())) {
+                release(taken, quantities);
+                return null;
+            }
+            taken.add(product);
+            quantities.add(item.getQuantity());
+        }
+        return taken;
+    }
+
+    private static void release(List<Product> taken, List<Integer> quantities) {
+        for (int i = taken.size() - 1; i >= 0; i--) {
+            taken.get(i).increaseStock(quantities.get(i));
+        }
+    }
+}
+
+class CartService {
+
+    private static final LatencyHistogram CHECKOUT_TIME = Metrics.timer("cart.checkout");
+    private static final LongAdder CHECKOUTS = Metrics.counter("cart.checkouts");
+    private static final LongAdder CHECKOUTS_REJECTED = Metrics.counter("cart.checkoutsRejected");
+
+    private ShoppingCart cart;
+    private ProductService productService;
+    private InventoryService inventory;
+
+    public CartService(ShoppingCart cart, ProductService productService) {
+        this.cart = cart;
+        this.productService = productService;
+        this.inventory = new InventoryService(productService);
+    }
+
+    public boolean addToCart(Product product, int quantity) {
+        if (product.getStock() >= quantity) {
+            cart.addProduct(product, quantity);
+            return true;
+        }
+        return false;
+    }
+
+    public void removeFromCart(Product product) {
+        cart.removeProduct(product);
+    }
+
+    public long getTotalPriceCents() {
+        return cart.getTotalPriceCents();
+    }
+
+    public boolean checkout() {
+        if (cart.isEmpty()) {
+            return false;
+        }
+
+        long start = System.nanoTime();
+        List<Product> reserved = inventory.reserve(cart.getItems());
+        if (reserved == null) {
+            CHECKOUTS_REJECTED.increment();
+            CHECKOUT_TIME.record(System.nanoTime() - start);
+            return false;
+        }
+
+        for (Product product : reserved) {
+            productService.productChanged(product);
+        }
+
+        cart.clear();
+
+        CHECKOUTS.increment();
+        CHECKOUT_TIME.record(System.nanoTime() - start);
+        return true;
+    }
+}
+
+class MutationJournal {
+
+    private static final LatencyHistogram APPEND_TIME = Metrics.timer("journal.append");
+    private static final LatencyHistogram SYNC_TIME = Metrics.timer("journal.sync");
+
+    // appends only reach the page cache right away; a background task fsyncs them in batches
+    private static final long SYNC_INTERVAL_MS = 50;
+
+    // one sweep syncs every journal with unsynced appends; there is a journal per user cart, so a journal
+    // only joins the set while it is dirty and is never referenced once it is clean
+    private static final Set<MutationJournal> DIRTY = ConcurrentHashMap.newKeySet();
+    private static final ScheduledExecutorService SYNCER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "journal-sync");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static {
+        SYNCER.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                // removed before syncing, so an append that lands meanwhile either is synced now or re-adds it
+                Iterator<MutationJournal> it = DIRTY.iterator();
+                while (it.hasNext()) {
+                    MutationJournal journal = it.next();
+                    it.remove();
+                    journal.sync();
+                }
+            }
+        }, SYNC_INTERVAL_MS, SYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private final Path path;
+    private FileChannel channel;
+    private int recordCount;
+    private boolean dirty;
+
+    public MutationJournal(String filePath) {
+        this.path = Paths.get(filePath);
+    }
+
+    // each record is one line: crc32 of the payload in hex, '|', payload
+    // false if the record could not be written; the error has been logged
+    public synchronized boolean append(String record) {
+        byte[] payload = record.getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        byte[] prefix = String.format("%08x|", crc.getValue()).getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(prefix.length + payload.length + 1);
+        buffer.put(prefix).put(payload).put((byte) '\n');
+        buffer.flip();
+
+        long start = System.nanoTime();
+        try {
+            if (channel == null) {
+                channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            recordCount++;
+            dirty = true;
+            DIRTY.add(this);
+            return true;
+        } catch (IOException e) {
+            Metrics.error("journal", "Error writing journal " + path + ": " + e.getMessage());
+            return false;
+        } finally {
+            APPEND_TIME.record(System.nanoTime() - start);
+        }
+    }
+
+    public synchronized void sync() {
+        if (!dirty || channel == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            channel.force(false);
+            dirty = false;
+        } catch (IOException e) {
+            Metrics.error("journal", "Error syncing journal " + path + ": " + e.getMessage());
+        }
+        SYNC_TIME.record(System.nanoTime() - start);
+    }
+
+    // intact records in order; replay stops at a torn last line or a checksum mismatch. Whatever follows the
+    // last intact record is cut off, so the next append starts on a clean line instead of gluing onto it.
+    public synchronized List<String> readRecords() {
+        List<String> records = new ArrayList<>();
+        if (!Files.exists(path)) {
+            return records;
+        }
+
+        byte[] data;
+        try {
+            data = Files.readAllBytes(path);
+        } catch (IOException e) {
+            Metrics.error("journal", "Error reading journal " + path + ": " + e.getMessage());
+            return records;
+        }
+
+        int start = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            String line = new String(data, start, i - start, StandardCharsets.UTF_8);
+
+            int bar = line.indexOf('|');
+            if (bar != 8) {
+                break;
+            }
+            String record = line.substring(bar + 1);
+            CRC32 crc = new CRC32();
+            crc.update(record.getBytes(StandardCharsets.UTF_8));
+            if (!String.format("%08x", crc.getValue()).equals(line.substring(0, bar))) {
+                break;
+            }
+            records.add(record);
+            start = i + 1;
+        }
+
+        if (start < data.length) {
+            Metrics.error("journal", "Journal " + path + " is torn or corrupt after " + records.size() + " records; dropping "
+                    + (data.length - start) + " bytes");
+            truncate(start);
+        }
+
+        recordCount = records.size();
+        return records;
+    }
+
+    private void truncate(long size) {
+        try {
+            if (channel != null) {
+                channel.truncate(size);
+                channel.force(false);
+            } else {
+                try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    file.truncate(size);
+                    file.force(false);
+                }
+            }
+        } catch (IOException e) {
+            Metrics.error("journal", "Error truncating journal " + path + ": " + e.getMessage());
+        }
+    }
+
+    // called once the records are covered by a fresh snapshot
+    public synchronized void reset() {
+        try {
+            if (channel != null) {
+                channel.truncate(0);
+                channel.force(false);
+            } else {
+                Files.deleteIfExists(path);
+            }
+            recordCount = 0;
+            dirty = false;
+        } catch (IOException e) {
+            Metrics.error("journal", "Error resetting journal " + path + ": " + e.getMessage());
+        }
+    }
+
+    public synchronized int size() {
+        return recordCount;
+    }
+
+    // syncs and releases the file; a later append reopens it
+    public synchronized void close() {
+        sync();
+        DIRTY.remove(this);
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Metrics.error("journal", "Error closing journal " + path + ": " + e.getMessage());
+            }
+            channel = null;
+        }
+    }
+}
+
+// writes a full snapshot next to the live file and renames it into place only once it is on disk
+class SnapshotWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int MIN_BUFFER_SIZE = 4096;
+    private static final LatencyHistogram WRITE_TIME = Metrics.timer("snapshot.write");
+    private static final LongAdder BYTES_WRITTEN = Metrics.counter("snapshot.bytes");
+
+    private final Path target;
+    private final Path temp;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final long startNanos;
+    private long bytesWritten;
+    private boolean committed;
+
+    // the buffer is sized to the expected output, up to 1 MB; only a full-size one is direct, since a small
+    // file (a cart) is written in one go and allocating direct memory for it costs more than the copy saves
+    public SnapshotWriter(String filePath, long expectedBytes) throws IOException {
+        this.target = Paths.get(filePath).toAbsolutePath();
+        this.temp = target.resolveSibling(target.getFileName() + ".tmp");
+        this.channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        int size = (int) Math.max(MIN_BUFFER_SIZE, Math.min(expectedBytes, BUFFER_SIZE));
+        this.buffer = size == BUFFER_SIZE ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        this.startNanos = System.nanoTime();
+    }
+
+    public void writeLine(String line) throws IOException {
+        write((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void writeByte(int value) throws IOException {
+        ensureRoom(1);
+        buffer.put((byte) value);
+    }
+
+    public void writeInt(int value) throws IOException {
+        ensureRoom(4);
+        buffer.putInt(value);
+    }
+
+    public void writeLong(long value) throws IOException {
+        ensureRoom(8);
+        buffer.putLong(value);
+    }
+
+    public void writeDouble(double value) throws IOException {
+        ensureRoom(8);
+        buffer.putDouble(value);
+    }
+
+    public void write(byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            int n = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, n);
+            offset += n;
+        }
+    }
+
+    public void commit() throws IOException {
+        drain();
+        channel.force(true);
+        channel.close();
+
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        committed = true;
+
+        WRITE_TIME.record(System.nanoTime() - startNanos);
+        BYTES_WRITTEN.add(bytesWritten);
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    // without a commit the live file is left untouched and the temp file is dropped
+    public void close() throws IOException {
+        if (committed) {
+            return;
+        }
+        channel.close();
+        Files.deleteIfExists(temp);
+    }
+
+    private void ensureRoom(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            drain();
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            bytesWritten += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
+
+// scans products.csv as UTF-8 bytes: no split(), no per-field substrings for the numeric columns
+class ProductCsvParser {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int FIELD_COUNT = 7;
+    private static final Category[] CATEGORIES = Category.values();
+    private static final byte[][] CATEGORY_NAMES = new byte[CATEGORIES.length][];
+
+    static {
+        for (int i = 0; i < CATEGORIES.length; i++) {
+            CATEGORY_NAMES[i] = CATEGORIES[i].name().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final String sourceName;
+    private final int[] fieldStarts = new int[FIELD_COUNT];
+    private final int[] fieldEnds = new int[FIELD_COUNT];
+    private final List<Integer> errorLines = new ArrayList<>();
+    private final List<String> errorReasons = new ArrayList<>();
+    private int linesRead;
+
+    public ProductCsvParser(String sourceName) {
+        this.sourceName = sourceName;
+    }
+
+    public List<Product> parse(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return parseRange(channel, 0, channel.size());
+        }
+    }
+
+    // parses the lines in [from, to); both ends must sit on line starts (or the file ends)
+    public List<Product> parseRange(FileChannel channel, long from, long to) throws IOException {
+        List<Product> products = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(to - from, 16)));
+        long position = from;
+        boolean first = from == 0;
+        boolean truncated = false;
+
+        while (true) {
+            if (position < to) {
+                buffer.limit((int) Math.min(buffer.capacity(), buffer.position() + (to - position)));
+                int read = channel.read(buffer, position);
+                if (read > 0) {
+                    position += read;
+                } else {
+                    // the file was cut short after its size was taken; keep what arrived and stop there
+                    Metrics.error("catalogFile", sourceName + " ended at byte " + position + ", "
+                            + (to - position) + " bytes short");
+                    to = position;
+                    truncated = true;
+                }
+            }
+            boolean eof = position >= to;
+
+            byte[] data = buffer.array();
+            int end = buffer.position();
+            int start = 0;
+            if (first && end >= 3 && data[0] == (byte) 0xEF && data[1] == (byte) 0xBB && data[2] == (byte) 0xBF) {
+                start = 3;
+            }
+            first = false;
+
+            for (int i = start; i < end; i++) {
+                if (data[i] == '\n') {
+                    add(products, parseLine(data, start, i, ++linesRead));
+                    start = i + 1;
+                }
+            }
+
+            if (eof) {
+                if (start < end && truncated) {
+                    malformed(++linesRead, "cut off where the file ended early");
+                } else if (start < end) {
+                    add(products, parseLine(data, start, end, ++linesRead));
+                }
+                break;
+            }
+
+            // keep the partial last line for the next read, growing the buffer for very long lines
+            int remaining = end - start;
+            if (start == 0 && remaining == buffer.capacity()) {
+                ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+                bigger.put(data, 0, remaining);
+                buffer = bigger;
+            } else {
+                System.arraycopy(data, start, data, 0, remaining);
+                buffer.clear();
+                buffer.position(remaining);
+            }
+        }
+
+        return products;
+    }
+
+    public Product parseLine(String line, int lineNumber) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        return parseLine(bytes, 0, bytes.length, lineNumber);
+    }
+
+    public int getLinesRead() {
+        return linesRead;
+    }
+
+    // line numbers are relative to where this parser started, hence the offset for chunked loads
+    public int reportErrors(int lineOffset) {
+        for (int i = 0; i < errorLines.size(); i++) {
+            System.out.println("Skipping " + sourceName + " line " + (errorLines.get(i) + lineOffset) + ": "
+                    + errorReasons.get(i));
+        }
+        return errorLines.size();
+    }
+
+    private static void add(List<Product> products, Product product) {
+        if (product != null) {
+            products.add(product);
+        }
+    }
+
+    private Product parseLine(byte[] b, int from, int to, int lineNumber) {
+        if (to > from && b[to - 1] == '\r') {
+            to--;
+        }
+        if (to == from) {
+            return null;
+        }
+
+        int fields = 0;
+        int fieldStart = from;
+        for (int i = from; i <= to; i++) {
+            if (i == to || b[i] == ';') {
+                if (fields < FIELD_COUNT) {
+                    fieldStarts[fields] = fieldStart;
+                    fieldEnds[fields] = i;
+                }
+                fields++;
+                fieldStart = i + 1;
+            }
+        }
+        if (fields != FIELD_COUNT) {
+            return malformed(lineNumber, "expected " + FIELD_COUNT + " fields, found " + fields);
+        }
+
+        Category category = parseCategory(b, fieldStarts[2], fieldEnds[2]);
+        if (category == null) {
+            return malformed(lineNumber, "unknown category '" + text(b, 2) + "'");
+        }
+
+        long price = Money.parse(b, fieldStarts[3], fieldEnds[3]);
+        if (price == Long.MIN_VALUE) {
+            return malformed(lineNumber, "invalid price '" + text(b, 3) + "'");
+        }
+
+        long stock = parseLong(b, fieldStarts[4], fieldEnds[4]);
+        if (stock == Long.MIN_VALUE || stock < Integer.MIN_VALUE || stock > Integer.MAX_VALUE) {
+            return malformed(lineNumber, "invalid stock '" + text(b, 4) + "'");
+        }
+
+        String imagePath = null;
+        if (fieldEnds[6] > fieldStarts[6]) {
+            imagePath = text(b, 6);
+            if (imagePath.trim().isEmpty()) {
+                imagePath = null;
+            }
+        }
+
+        ProductId id = ProductId.parse(b, fieldStarts[0], fieldEnds[0]);
+        Product product = new Product(id, text(b, 1), category, price, (int) stock, text(b, 5));
+        product.setImagePath(imagePath);
+        return product;
+    }
+
+    private Product malformed(int lineNumber, String reason) {
+        errorLines.add(lineNumber);
+        errorReasons.add(reason);
+        return null;
+    }
+
+    private String text(byte[] b, int field) {
+        return new String(b, fieldStarts[field], fieldEnds[field] - fieldStarts[field], StandardCharsets.UTF_8);
+    }
+
+    private static Category parseCategory(byte[] b, int from, int to) {
+        for (int c = 0; c < CATEGORY_NAMES.length; c++) {
+            byte[] name = CATEGORY_NAMES[c];
+            if (name.length != to - from) {
+                continue;
+            }
+            int i = 0;
+            while (i < name.length && name[i] == b[from + i]) {
+                i++;
+            }
+            if (i == name.length) {
+                return CATEGORIES[c];
+            }
+        }
+        return null;
+    }
+
+    // Long.MIN_VALUE when the field is not a plain integer
+    static long parseLong(byte[] b, int from, int to) {
+        if (from == to) {
+            return Long.MIN_VALUE;
+        }
+
+        boolean negative = b[from] == '-';
+        int i = negative || b[from] == '+' ? from + 1 : from;
+        if (i == to) {
+            return Long.MIN_VALUE;
+        }
+
+        long value = 0;
+        for (; i < to; i++) {
+            int digit = b[i] - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+}
+
+// splits a large products.csv into line-aligned byte ranges and parses them on the fork-join pool
+class ChunkedCatalogLoader {
+
+    private static final long MIN_CHUNK_BYTES = 4L * 1024 * 1024;
+
+    private final ForkJoinPool pool;
+
+    public ChunkedCatalogLoader(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public List<Product> load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int chunks = (int) Math.max(1, Math.min(pool.getParallelism() * 4L, size / MIN_CHUNK_BYTES));
+
+            long[] bounds = new long[chunks + 1];
+            bounds[chunks] = size;
+            for (int i = 1; i < chunks; i++) {
+                bounds[i] = Math.max(bounds[i - 1], nextLineStart(channel, size * i / chunks, size));
+            }
+
+            List<ForkJoinTask<List<Product>>> tasks = new ArrayList<>();
+            List<ProductCsvParser> parsers = new ArrayList<>();
+            for (int i = 0; i < chunks; i++) {
+                ProductCsvParser parser = new ProductCsvParser(path.toString());
+                long from = bounds[i];
+                long to = bounds[i + 1];
+                parsers.add(parser);
+                tasks.add(pool.submit(new Callable<List<Product>>() {
+                    public List<Product> call() throws IOException {
+                        return parser.parseRange(channel, from, to);
+                    }
+                }));
+            }
+
+            // joining in submission order keeps the file order
+            List<Product> products = new ArrayList<>();
+            int lineOffset = 0;
+            for (int i = 0; i < chunks; i++) {
+                try {
+                    products.addAll(tasks.get(i).get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while loading " + path, e);
+                } catch (ExecutionException e) {
+                    throw new IOException(e.getCause());
+                }
+                parsers.get(i).reportErrors(lineOffset);
+                lineOffset += parsers.get(i).getLinesRead();
+            }
+            return products;
+        }
+    }
+
+    private static long nextLineStart(FileChannel channel, long position, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+}
+
+// products.bin: a header, fixed-width columns for every record, then the length-prefixed UTF-8 strings.
+//   header   int magic, int version, int count
+//   columns  long[count] record offsets, long[count] price in cents, int[count] stock, byte[count] category ordinal
+//   records  id, name, description, image path, each as int byte length (-1 = null) + UTF-8 bytes
+class BinaryCatalogFile {
+
+    static final int MAGIC = 0x534D4342;
+    static final int VERSION = 2;
+    static final int HEADER_BYTES = 12;
+    static final int COLUMN_BYTES = 8 + 8 + 4 + 1;
+
+    private static final Category[] CATEGORIES = Category.values();
+
+    public static void write(String filePath, List<Product> products) throws IOException {
+        int count = products.size();
+
+        try (SnapshotWriter writer = new SnapshotWriter(filePath, HEADER_BYTES + count * (COLUMN_BYTES + 64L))) {
+            writer.writeInt(MAGIC);
+            writer.writeInt(VERSION);
+            writer.writeInt(count);
+
+            // offsets can be computed up front because UTF-8 lengths are known without encoding
+            long offset = HEADER_BYTES + (long) count * COLUMN_BYTES;
+            for (Product product : products) {
+                writer.writeLong(offset);
+                offset += stringBytes(product.getId().toString()) + stringBytes(product.getName())
+                        + stringBytes(product.getDescription()) + stringBytes(product.getImagePath());
+            }
+            for (Product product : products) {
+                writer.writeLong(product.getPriceCents());
+            }
+            for (Product product : products) {
+                writer.writeInt(product.getStock());
+            }
+            for (Product product : products) {
+                writer.writeByte(product.getCategory().ordinal());
+            }
+            for (Product product : products) {
+                writeString(writer, product.getId().toString());
+                writeString(writer, product.getName());
+                writeString(writer, product.getDescription());
+                writeString(writer, product.getImagePath());
+            }
+
+            writer.commit();
+        }
+    }
+
+    public static List<Product> read(String filePath) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(filePath + " is too large to map");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            int count = readHeader(buffer, filePath);
+            checkRecords(buffer, count, filePath);
+            List<Product> products = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                products.add(readProduct(buffer, count, i));
+            }
+            return products;
+        }
+    }
+
+    static int readHeader(ByteBuffer buffer, String filePath) throws IOException {
+        return checkedCount(buffer, buffer.limit(), filePath);
+    }
+
+    // every offset, string length and category byte checked against the file once, so the decoders below
+    // (which run on the mapping at any time) can trust them; a corrupt file fails here instead of halfway
+    static void checkRecords(ByteBuffer buffer, int count, String filePath) throws IOException {
+        long dataStart = HEADER_BYTES + (long) count * COLUMN_BYTES;
+        int limit = buffer.limit();
+        for (int i = 0; i < count; i++) {
+            int category = buffer.get(HEADER_BYTES + count * 20 + i);
+            if (category < 0 || category >= CATEGORIES.length) {
+                throw new IOException(filePath + " has an unknown category in record " + i);
+            }
+            long at = buffer.getLong(HEADER_BYTES + i * 8);
+            if (at < dataStart || at > limit) {
+                throw new IOException(filePath + " has a bad offset for record " + i);
+            }
+            // id, name, description, image path; only the id can't be missing
+            for (int field = 0; field < 4; field++) {
+                int length = at + 4 <= limit ? buffer.getInt((int) at) : Integer.MIN_VALUE;
+                if (length < (field == 0 ? 0 : -1) || at + 4 + length > limit) {
+                    throw new IOException(filePath + " is truncated or corrupt in record " + i);
+                }
+                at += 4 + Math.max(length, 0);
+            }
+        }
+    }
+
+    // the record count from the header alone, without mapping the file
+    static int readCount(String filePath) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            channel.read(header, 0);
+            header.flip();
+            return checkedCount(header, channel.size(), filePath);
+        }
+    }
+
+    private static int checkedCount(ByteBuffer header, long fileSize, String filePath) throws IOException {
+        if (header.limit() < HEADER_BYTES || header.getInt(0) != MAGIC) {
+            throw new IOException(filePath + " is not a catalog file");
+        }
+        if (header.getInt(4) != VERSION) {
+            throw new IOException(filePath + " has unsupported version " + header.getInt(4));
+        }
+        int count = header.getInt(8);
+        if (count < 0 || HEADER_BYTES + (long) count * COLUMN_BYTES > fileSize) {
+            throw new IOException(filePath + " is truncated");
+        }
+        return count;
+    }
+
+    static Product readProduct(ByteBuffer buffer, int count, int i) {
+        int[] position = { recordOffset(buffer, i) };
+        ProductId id = ProductId.parse(readString(buffer, position));
+        String name = readString(buffer, position);
+        String description = readString(buffer, position);
+        String imagePath = readString(buffer, position);
+
+        Product product = new Product(id, name, categoryAt(buffer, count, i), priceAt(buffer, count, i),
+                stockAt(buffer, count, i), description);
+        product.setImagePath(imagePath);
+        return product;
+    }
+
+    static int recordOffset(ByteBuffer buffer, int i) {
+        return (int) buffer.getLong(HEADER_BYTES + i * 8);
+    }
+
+    static long priceAt(ByteBuffer buffer, int count, int i) {
+        return buffer.getLong(HEADER_BYTES + count * 8 + i * 8);
+    }
+
+    static int stockAt(ByteBuffer buffer, int count, int i) {
+        return buffer.getInt(HEADER_BYTES + count * 16 + i * 4);
+    }
+
+    static Category categoryAt(ByteBuffer buffer, int count, int i) {
+        return CATEGORIES[buffer.get(HEADER_BYTES + count * 20 + i)];
+    }
+
+    private static void writeString(SnapshotWriter writer, String value) throws IOException {
+        if (value == null) {
+            writer.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writer.writeInt(bytes.length);
+        writer.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer, int[] position) {
+        int length = buffer.getInt(position[0]);
+        position[0] += 4;
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(position[0], bytes);
+        position[0] += length;
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long stringBytes(String value) {
+        if (value == null) {
+            return 4;
+        }
+        long length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return 4 + length;
+    }
+}
+
+class ProductFileRepository {
+
+    private static final int COMPACT_AFTER_RECORDS = 500;
+    private static final int MAPPED_CATALOG_THRESHOLD = 1_000_000;
+
+    private final String filePath;
+    private final String binaryPath;
+    private final MutationJournal journal;
+
+    public ProductFileRepository(String filePath) {
+        this.filePath = filePath;
+        this.binaryPath = filePath.endsWith(".csv") ? filePath.substring(0, filePath.length() - 4) + ".bin" : filePath + ".bin";
+        this.journal = new MutationJournal(filePath + ".journal");
+    }
+
+    // products.csv stays the exchange format; products.bin is written after it so it is normally the newer one.
+    // False if either file could not be written; the error has been logged.
+    public boolean saveProducts(List<Product> products) {
+        try (SnapshotWriter writer = new SnapshotWriter(filePath, products.size() * 96L)) {
+
+            for (Product product : products) {
+                writer.writeLine(toLine(product));
+            }
+            writer.commit();
+
+        } catch (IOException e) {
+            Metrics.error("catalogFile", "Error saving products to file: " + e.getMessage());
+            return false;
+        }
+
+        try {
+            BinaryCatalogFile.write(binaryPath, products);
+        } catch (IOException e) {
+            Metrics.error("catalogFile", "Error saving binary catalog: " + e.getMessage());
+            return false;
+        }
+
+        journal.reset();
+        return true;
+    }
+
+    // journal records are built apart from writing them, so they can be taken on the thread that made the change
+    static String putRecord(Product product) {
+        return "P;" + toLine(product);
+    }
+
+    static String deleteRecord(ProductId productId) {
+        return "D;" + productId;
+    }
+
+    public boolean log(String record) {
+        return journal.append(record);
+    }
+
+    public boolean needsCompaction() {
+        return journal.size() >= COMPACT_AFTER_RECORDS;
+    }
+
+    // snapshot from products.csv with the journal replayed on top
+    public List<Product> loadProducts() {
+        Map<ProductId, Product> products = new LinkedHashMap<>();
+
+        for (Product product : loadSnapshot()) {
+            products.put(product.getId(), product);
+        }
+
+        ProductCsvParser journalParser = new ProductCsvParser(filePath + ".journal");
+        int recordNumber = 0;
+        for (String record : journal.readRecords()) {
+            recordNumber++;
+            if (record.startsWith("P;")) {
+                Product product = journalParser.parseLine(record.substring(2), recordNumber);
+                if (product != null) {
+                    products.put(product.getId(), product);
+                }
+            } else if (record.startsWith("D;")) {
+                products.remove(ProductId.parse(record.substring(2)));
+            }
+        }
+        journalParser.reportErrors(0);
+
+        return new ArrayList<>(products.values());
+    }
+
+    // for very large catalogs, products.bin is used in place instead of being loaded onto the heap;
+    // null means load normally (small catalog or CSV is newer)
+    public MappedProductCatalog openMapped() {
+        File file = new File(filePath);
+        File binary = new File(binaryPath);
+        if (!binary.exists() || file.exists() && binary.lastModified() < file.lastModified()) {
+            return null;
+        }
+
+        try {
+            // the header says how big the catalog is before anything is mapped or indexed
+            if (BinaryCatalogFile.readCount(binaryPath) < MAPPED_CATALOG_THRESHOLD && !Boolean.getBoolean("shop.mappedCatalog")) {
+                return null;
+            }
+            MappedProductCatalog catalog = MappedProductCatalog.open(binaryPath);
+
+            ProductCsvParser journalParser = new ProductCsvParser(filePath + ".journal");
+            int recordNumber = 0;
+            for (String record : journal.readRecords()) {
+                recordNumber++;
+                if (record.startsWith("P;")) {
+                    Product product = journalParser.parseLine(record.substring(2), recordNumber);
+                    if (product != null) {
+                        catalog.put(product);
+                    }
+                } else if (record.startsWith("D;")) {
+                    int index = catalog.indexOf(ProductId.parse(record.substring(2)));
+                    if (index >= 0) {
+                        catalog.remove(index);
+                    }
+                }
+            }
+            journalParser.reportErrors(0);
+            return catalog;
+        } catch (IOException e) {
+            Metrics.error("catalogFile", "Error mapping binary catalog: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // whichever of products.csv / products.bin is newer, so an externally replaced CSV wins
+    private List<Product> loadSnapshot() {
+        File file = new File(filePath);
+        File binary = new File(binaryPath);
+
+        if (binary.exists() && (!file.exists() || binary.lastModified() >= file.lastModified())) {
+            try {
+                return BinaryCatalogFile.read(binaryPath);
+            } catch (IOException e) {
+                Metrics.error("catalogFile", "Error loading binary catalog, falling back to " + filePath + ": " + e.getMessage());
+            }
+        }
+
+        if (!file.exists()) {
+            return new ArrayList<>();
+        }
+        try {
+            return new ChunkedCatalogLoader(ForkJoinPool.commonPool()).load(file.toPath());
+        } catch (IOException e) {
+            Metrics.error("catalogFile", "Error loading products from file: " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    private static String toLine(Product product) {
+        String imagePath = product.getImagePath();
+        if (imagePath == null) {
+            imagePath = "";
+        }
+
+        return product.getId() + ";" + product.getName() + ";" + product.getCategory() + ";" +
+                Money.format(product.getPriceCents()) + ";" + product.getStock() + ";" + product.getDescription() + ";" + imagePath;
+    }
+}
+
+// appends every catalog change to the product journal instead of rewriting products.csv. The record is taken
+// on the thread that made the change (often the EDT); writing it, and compacting, is left to the persistence thread.
+class ProductJournalWriter implements ProductCatalogListener {
+
+    private final ProductService productService;
+    private final ProductFileRepository repository;
+    private final PersistenceExecutor persistence;
+
+    public ProductJournalWriter(ProductService productService, ProductFileRepository repository,
+                                PersistenceExecutor persistence) {
+        this.productService = productService;
+        this.repository = repository;
+        this.persistence = persistence;
+    }
+
+    public void productAdded(Product product, int index) {
+        log(ProductFileRepository.putRecord(product));
+    }
+
+    public void productRemoved(Product product, int index) {
+        log(ProductFileRepository.deleteRecord(product.getId()));
+    }
+
+    public void productUpdated(Product product) {
+        // checkouts notify outside the catalog lock; formatting and queueing under the product keeps the
+        // last record queued for it no older than the last stock change
+        synchronized (product) {
+            log(ProductFileRepository.putRecord(product));
+        }
+    }
+
+    public void catalogReloaded() {
+    }
+
+    private void log(String record) {
+        persistence.submit("writing the product journal", new Callable<Void>() {
+            public Void call() throws IOException {
+                if (!repository.log(record)) {
+                    throw new IOException("the change was not recorded");
+                }
+                if (repository.needsCompaction() && !productService.saveToFile(repository)) {
+                    throw new IOException("the catalog could not be compacted");
+                }
+                return null;
+            }
+        });
+    }
+}
+
+class CartFileRepository {
+
+    static final int COMPACT_AFTER_RECORDS = 200;
+    private static final LatencyHistogram LOAD_TIME = Metrics.timer("cart.load");
+
+    private final String filePath;
+    private final MutationJournal journal;
+
+    public CartFileRepository(String filePath) {
+        this.filePath = filePath;
+        this.journal = new MutationJournal(filePath + ".journal");
+    }
+
+    public void saveCart(ShoppingCart cart) {
+        saveQuantities(quantitiesOf(cart));
+    }
+
+    // a copy of the cart's lines, so the cart can keep changing while the copy is written elsewhere
+    static Map<ProductId, Integer> quantitiesOf(ShoppingCart cart) {
+        Map<ProductId, Integer> quantities = new LinkedHashMap<>();
+        for (CartItem item : cart.getItems()) {
+            quantities.put(item.getProduct().getId(), item.getQuantity());
+        }
+        return quantities;
+    }
+
+    public void saveQuantities(Map<ProductId, Integer> quantities) {
+        try (SnapshotWriter writer = new SnapshotWriter(filePath, quantities.size() * 48L)) {
+            for (Map.Entry<ProductId, Integer> line : quantities.entrySet()) {
+                writer.writeLine(line.getKey() + ";" + line.getValue());
+            }
+            writer.commit();
+        } catch (IOException e) {
+            Metrics.error("cartFile", "Error saving cart to file: " + e.getMessage());
+            return;
+        }
+
+        journal.reset();
+    }
+
+    public boolean exists() {
+        return new File(filePath).exists() || new File(filePath + ".journal").exists();
+    }
+
+    public void close() {
+        journal.close();
+    }
+
+    // records the new quantity of one cart line (0 = removed)
+    public void appendLine(ProductId productId, int quantity) {
+        journal.append(productId + ";" + quantity);
+    }
+
+    public int journalSize() {
+        return journal.size();
+    }
+
+    public ShoppingCart loadCart(ProductService productService) {
+        long start = System.nanoTime();
+        Map<ProductId, Integer> quantities = new LinkedHashMap<>();
+
+        File file = new File(filePath);
+        if (file.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    readLine(line, quantities);
+                }
+            } catch (IOException e) {
+                Metrics.error("cartFile", "Error loading cart from file: " + e.getMessage());
+            }
+        }
+
+        for (String record : journal.readRecords()) {
+            readLine(record, quantities);
+        }
+
+        ShoppingCart cart = new ShoppingCart();
+        for (Map.Entry<ProductId, Integer> entry : quantities.entrySet()) {
+            Product p = productService.findById(entry.getKey());
+            if (p == null) {
+                continue;
+            }
+
+            int qty = entry.getValue();
+            if (p.getStock() < qty) {
+                qty = p.getStock();
+            }
+
+            if (qty > 0) {
+                cart.addProduct(p, qty);
+            }
+        }
+
+        LOAD_TIME.record(System.nanoTime() - start);
+        return cart;
+    }
+
+    private static void readLine(String line, Map<ProductId, Integer> quantities) {
+        String[] parts = line.split(";");
+        if (parts.length != 2) return;
+
+        ProductId productId = ProductId.parse(parts[0].trim());
+        int qty;
+        try {
+            qty = Integer.parseInt(parts[1].trim());
+        } catch (NumberFormatException ex) {
+            return;
+        }
+
+        if (qty > 0) {
+            quantities.put(productId, qty);
+        } else {
+            quantities.remove(productId);
+        }
+    }
+}
+
+// carts keyed by username, each in its own carts/<user>.csv plus journal. A cart is loaded when its user logs in,
+// and once nobody holds it and it sits idle (or too many are resident) it is compacted to disk and dropped,
+// so memory depends on active customers, not on how many have ever shopped.
+//
+// Writes are behind: saveLine/save only record what changed, and a single flusher thread writes it out every
+// FLUSH_INTERVAL_MS or after FLUSH_AFTER_CHANGES changes, keeping just the latest quantity of each line.
+class CartStore {
+
+    static final String DEFAULT_DIR = "carts";
+    static final int MAX_RESIDENT_CARTS = 1000;
+    static final long IDLE_TIMEOUT_MS = 10 * 60 * 1000;
+    private static final long SWEEP_INTERVAL_MS = 60 * 1000;
+
+    // -Dshop.cartFlushMs / -Dshop.cartFlushChanges
+    static final long FLUSH_INTERVAL_MS = Long.getLong("shop.cartFlushMs", 250);
+    static final int FLUSH_AFTER_CHANGES = Integer.getInteger("shop.cartFlushChanges", 100);
+
+    // what is still to be written is guarded by the entry itself, so the flusher never touches the cart
+    private static class Entry {
+        final CartFileRepository repository;
+        final ShoppingCart cart;
+        int holders;
+        long lastAccess;
+
+        Map<ProductId, Integer> dirtyLines = new LinkedHashMap<>();
+        Map<ProductId, Integer> pendingSnapshot;
+
+        Entry(CartFileRepository repository, ShoppingCart cart) {
+            this.repository = repository;
+            this.cart = cart;
+        }
+    }
+
+    private final String directory;
+    private final String legacyCartPath;
+    // set once the legacy cart has been handed out (or was never there), so later loads skip the check
+    private boolean legacyCartChecked;
+    private final ProductService productService;
+    // access-ordered, so eviction walks the least recently used carts first
+    private final LinkedHashMap<String, Entry> resident = new LinkedHashMap<>(16, 0.75f, true);
+    // evicted carts whose files are still being written; open() waits for these instead of reading them
+    private final Map<String, Entry> unloading = new HashMap<>();
+    private final Set<Entry> dirtyEntries = new LinkedHashSet<>();
+    private int pendingChanges;
+    private long lastSweep = System.currentTimeMillis();
+
+    private final ScheduledExecutorService flusher;
+    private final AtomicBoolean flushQueued = new AtomicBoolean(false);
+
+    private static final LatencyHistogram FLUSH_TIME = Metrics.timer("cart.flush");
+    private static final LongAdder CHANGES_RECORDED = Metrics.counter("cart.changesRecorded");
+    private static final LongAdder LINES_WRITTEN = Metrics.counter("cart.linesWritten");
+    private static final LongAdder EVICTIONS = Metrics.counter("cart.evictions");
+
+    // legacyCartPath: the old single cart.csv, handed to the first user who has no cart file yet
+    public CartStore(String directory, String legacyCartPath, ProductService productService) {
+        this.directory = directory;
+        this.legacyCartPath = legacyCartPath;
+        this.productService = productService;
+        Metrics.gauge("cart.resident", new LongSupplier() {
+            public long getAsLong() {
+                return residentCount();
+            }
+        });
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "cart-flusher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                flush();
+                evictIfDue();
+            }
+        }, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // loads the cart on first use; every open() needs a matching close()
+    public synchronized ShoppingCart open(String username) {
+        boolean interrupted = false;
+        while (unloading.containsKey(username)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        Entry entry = resident.get(username);
+        if (entry == null) {
+            entry = load(username);
+            resident.put(username, entry);
+        }
+        entry.holders++;
+        entry.lastAccess = System.currentTimeMillis();
+        return entry.cart;
+    }
+
+    public synchronized void close(String username) {
+        Entry entry = resident.get(username);
+        if (entry != null && entry.holders > 0) {
+            entry.holders--;
+            entry.lastAccess = System.currentTimeMillis();
+        }
+    }
+
+    // marks one line as changed; called by the cart's owner, which is the only thread reading the cart here
+    public void saveLine(String username, Product product) {
+        Entry entry = residentEntry(username);
+        if (entry == null) {
+            return;
+        }
+
+        synchronized (entry) {
+            entry.dirtyLines.put(product.getId(), entry.cart.getQuantity(product));
+            if (entry.repository.journalSize() + entry.dirtyLines.size() >= CartFileRepository.COMPACT_AFTER_RECORDS) {
+                entry.pendingSnapshot = CartFileRepository.quantitiesOf(entry.cart);
+                entry.dirtyLines.clear();
+            }
+        }
+        markDirty(entry);
+    }
+
+    // marks the whole cart for a rewrite, e.g. after a checkout emptied it
+    public void save(String username) {
+        Entry entry = residentEntry(username);
+        if (entry == null) {
+            return;
+        }
+
+        synchronized (entry) {
+            entry.pendingSnapshot = CartFileRepository.quantitiesOf(entry.cart);
+            entry.dirtyLines.clear();
+        }
+        markDirty(entry);
+    }
+
+    // writes everything marked so far; runs on the flusher thread, and once more at shutdown from saveAll
+    public void flush() {
+        List<Entry> entries;
+        synchronized (this) {
+            if (dirtyEntries.isEmpty()) {
+                return;
+            }
+            entries = new ArrayList<>(dirtyEntries);
+            dirtyEntries.clear();
+            pendingChanges = 0;
+        }
+        flushQueued.set(false);
+
+        long start = System.nanoTime();
+        for (Entry entry : entries) {
+            writePending(entry);
+        }
+        FLUSH_TIME.record(System.nanoTime() - start);
+    }
+
+    // the guaranteed final write: pending changes, then a full snapshot of every resident cart
+    public void saveAll() {
+        flush();
+        synchronized (this) {
+            List<Entry> entries = new ArrayList<>(resident.values());
+            entries.addAll(unloading.values());
+            for (Entry entry : entries) {
+                synchronized (entry) {
+                    entry.repository.saveCart(entry.cart);
+                }
+            }
+        }
+    }
+
+    public synchronized int residentCount() {
+        return resident.size();
+    }
+
+    private synchronized Entry residentEntry(String username) {
+        return resident.get(username);
+    }
+
+    // after the change is recorded on the entry, so a flush that picks the entry up always sees it
+    private void markDirty(Entry entry) {
+        boolean full;
+        synchronized (this) {
+            dirtyEntries.add(entry);
+            full = ++pendingChanges >= FLUSH_AFTER_CHANGES;
+        }
+        CHANGES_RECORDED.increment();
+        if (full && flushQueued.compareAndSet(false, true)) {
+            flusher.execute(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            });
+        }
+    }
+
+    private void writePending(Entry entry) {
+        synchronized (entry) {
+            if (entry.pendingSnapshot != null) {
+                entry.repository.saveQuantities(entry.pendingSnapshot);
+                LINES_WRITTEN.add(entry.pendingSnapshot.size());
+                entry.pendingSnapshot = null;
+            }
+            for (Map.Entry<ProductId, Integer> line : entry.dirtyLines.entrySet()) {
+                entry.repository.appendLine(line.getKey(), line.getValue());
+            }
+            LINES_WRITTEN.add(entry.dirtyLines.size());
+            entry.dirtyLines.clear();
+        }
+    }
+
+    // eviction writes too, so it also runs on the flusher thread. The carts are picked under the lock and written
+    // without it; until its files are complete an evicted cart sits in unloading, so it can't be reloaded mid-write.
+    private void evictIfDue() {
+        Map<String, Entry> evicted = new LinkedHashMap<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            boolean sweep = now - lastSweep >= SWEEP_INTERVAL_MS;
+            if (!sweep && resident.size() <= MAX_RESIDENT_CARTS) {
+                return;
+            }
+            if (sweep) {
+                lastSweep = now;
+            }
+
+            long cutoff = now - IDLE_TIMEOUT_MS;
+            Iterator<Map.Entry<String, Entry>> it = resident.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Entry> candidate = it.next();
+                Entry entry = candidate.getValue();
+                boolean idle = sweep && entry.lastAccess < cutoff;
+                if (entry.holders == 0 && (idle || resident.size() > MAX_RESIDENT_CARTS)) {
+                    it.remove();
+                    dirtyEntries.remove(entry);
+                    unloading.put(candidate.getKey(), entry);
+                    evicted.put(candidate.getKey(), entry);
+                }
+            }
+        }
+
+        for (Map.Entry<String, Entry> done : evicted.entrySet()) {
+            unload(done.getValue());
+            EVICTIONS.increment();
+            synchronized (this) {
+                unloading.remove(done.getKey());
+                notifyAll();
+            }
+        }
+    }
+
+    private void unload(Entry entry) {
+        synchronized (entry) {
+            entry.repository.saveCart(entry.cart);
+            entry.dirtyLines.clear();
+            entry.pendingSnapshot = null;
+            entry.repository.close();
+        }
+    }
+
+    private Entry load(String username) {
+        try {
+            Files.createDirectories(Paths.get(directory));
+        } catch (IOException e) {
+            Metrics.error("cartFile", "Error creating cart directory: " + e.getMessage());
+        }
+
+        CartFileRepository repository = new CartFileRepository(directory + File.separator + fileName(username));
+        if (!repository.exists() && adoptLegacyCart(repository)) {
+            System.out.println("Moved " + legacyCartPath + " to the cart of " + username);
+        }
+        return new Entry(repository, repository.loadCart(productService));
+    }
+
+    private boolean adoptLegacyCart(CartFileRepository repository) {
+        if (legacyCartChecked || legacyCartPath == null) {
+            return false;
+        }
+        legacyCartChecked = true;
+        if (!Files.exists(Paths.get(legacyCartPath)) && !Files.exists(Paths.get(legacyCartPath + ".journal"))) {
+            return false;
+        }
+
+        CartFileRepository legacy = new CartFileRepository(legacyCartPath);
+        repository.saveCart(legacy.loadCart(productService));
+        legacy.close();
+        try {
+            Files.deleteIfExists(Paths.get(legacyCartPath + ".journal"));
+            Files.move(Paths.get(legacyCartPath), Paths.get(legacyCartPath + ".migrated"), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Metrics.error("cartFile", "Error retiring " + legacyCartPath + ": " + e.getMessage());
+        }
+        return true;
+    }
+
+    // usernames are free text; anything outside [A-Za-z0-9-] is escaped so each user maps to one safe file name
+    static String fileName(String username) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : username.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-') {
+                name.append(c);
+            } else {
+                name.append('_').append(String.format("%02x", b & 0xFF));
+            }
+        }
+        return name.append(".csv").toString();
+    }
+}
+
+// latency histogram with bounded relative error, in the spirit of HdrHistogram: values below 256 get a bucket
+// each, and every power of two above is split into 128 linear steps, so a reported value is within 1% of what
+// was recorded. Recording is a few shifts and one atomic increment, so threads can share one histogram.
+class LatencyHistogram {
+
+    private static final int LINEAR_BITS = 8;
+    private static final int LINEAR = 1 << LINEAR_BITS;
+    private static final int HALF = LINEAR >> 1;
+    private static final int BUCKETS = LINEAR + (64 - LINEAR_BITS) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    // adders, not atomics: every record touches these two, and timers are shared by all request threads
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+        }
+    }
+
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        count.add(other.count.sum());
+        sum.add(other.sum.sum());
+        long current;
+        long otherMax = other.max.get();
+        while (otherMax > (current = max.get()) && !max.compareAndSet(current, otherMax)) {
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    // percentile in 0..100; the top of the bucket holding that rank, capped at the largest value seen
+    public long valueAtPercentile(double percentile) {
+        long n = count.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueIn(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    static int bucketOf(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - LINEAR_BITS;
+        return LINEAR + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    static long highestValueIn(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int k = bucket - LINEAR;
+        int shift = k / HALF + 1;
+        long sub = k % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+}
+
+// process-wide counters, gauges and latency timers under dotted names ("catalog.findById"). Hot paths keep the
+// counter or timer in a static final field, so recording is a LongAdder add or a histogram record and nothing
+// is looked up or formatted until a report is taken.
+//
+// -Dshop.metricsFile      report destination (appended to); stdout when unset
+// -Dshop.metricsIntervalSec  report every N seconds as well as at shutdown; 0 = only at shutdown
+// Everything is also readable over JMX as shop:type=Metrics, timers as <name>.count/.mean/.p50/.p99/.p999/.max.
+final class Metrics {
+
+    static final String REPORT_FILE = System.getProperty("shop.metricsFile");
+    static final long REPORT_INTERVAL_SEC = Long.getLong("shop.metricsIntervalSec", 0);
+    static final String OBJECT_NAME = "shop:type=Metrics";
+
+    private static final String[] TIMER_FIELDS = { "count", "mean", "p50", "p99", "p999", "max" };
+    private static final DateTimeFormatter REPORT_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private static final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LatencyHistogram> timers = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private static final AtomicBoolean started = new AtomicBoolean(false);
+
+    private Metrics() {
+    }
+
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    // latencies in nanoseconds
+    public static LatencyHistogram timer(String name) {
+        return timers.computeIfAbsent(name, k -> new LatencyHistogram());
+    }
+
+    // read only when a report is taken; registering the same name again replaces the supplier
+    public static void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    // counts errors.<name> and prints the message the way the app always has
+    public static void error(String name, String message) {
+        counter("errors." + name).increment();
+        System.out.println(message);
+    }
+
+    // registers the MBean and the interval report; later calls do nothing
+    public static void start() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+
+        gauge("jvm.heapUsedBytes", new LongSupplier() {
+            public long getAsLong() {
+                Runtime runtime = Runtime.getRuntime();
+                return runtime.totalMemory() - runtime.freeMemory();
+            }
+        });
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName(OBJECT_NAME));
+        } catch (Exception e) {
+            System.out.println("Error registering " + OBJECT_NAME + ": " + e.getMessage());
+        }
+
+        if (REPORT_INTERVAL_SEC > 0) {
+            ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "metrics-reporter");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            reporter.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    dump();
+                }
+            }, REPORT_INTERVAL_SEC, REPORT_INTERVAL_SEC, TimeUnit.SECONDS);
+        }
+    }
+
+    // writes a report to shop.metricsFile, or stdout
+    public static synchronized void dump() {
+        String report = report();
+        if (REPORT_FILE == null) {
+            System.out.print(report);
+            return;
+        }
+        try {
+            Files.write(Paths.get(REPORT_FILE), report.getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.out.println("Error writing metrics to " + REPORT_FILE + ": " + e.getMessage());
+        }
+    }
+
+    // everything since startup, sorted by name; timers in microseconds
+    public static String report() {
+        StringBuilder out = new StringBuilder();
+        out.append("-- metrics ").append(LocalDateTime.now().format(REPORT_TIME)).append(" --\n");
+        for (Map.Entry<String, LongAdder> counter : new TreeMap<>(counters).entrySet()) {
+            out.append(String.format("counter  %-32s %d%n", counter.getKey(), counter.getValue().sum()));
+        }
+        for (Map.Entry<String, LongSupplier> gauge : new TreeMap<>(gauges).entrySet()) {
+            out.append(String.format("gauge    %-32s %d%n", gauge.getKey(), gauge.getValue().getAsLong()));
+        }
+        for (Map.Entry<String, LatencyHistogram> timer : new TreeMap<>(timers).entrySet()) {
+            LatencyHistogram h = timer.getValue();
+            if (h.getCount() == 0) {
+                continue;
+            }
+            out.append(String.format("timer    %-32s count=%d mean=%.1fus p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus%n",
+                    timer.getKey(), h.getCount(), h.getMean() / 1e3, h.valueAtPercentile(50) / 1e3,
+                    h.valueAtPercentile(99) / 1e3, h.valueAtPercentile(99.9) / 1e3, h.getMax() / 1e3));
+        }
+        return out.toString();
+    }
+
+    // current value of a counter, gauge or timer field; null if there is no such metric
+    static Long read(String name) {
+        LongAdder counter = counters.get(name);
+        if (counter != null) {
+            return counter.sum();
+        }
+        LongSupplier gauge = gauges.get(name);
+        if (gauge != null) {
+            return gauge.getAsLong();
+        }
+
+        int dot = name.lastIndexOf('.');
+        LatencyHistogram h = dot < 0 ? null : timers.get(name.substring(0, dot));
+        if (h == null) {
+            return null;
+        }
+        switch (name.substring(dot + 1)) {
+            case "count":
+                return h.getCount();
+            case "mean":
+                return Math.round(h.getMean());
+            case "p50":
+                return h.valueAtPercentile(50);
+            case "p99":
+                return h.valueAtPercentile(99);
+            case "p999":
+                return h.valueAtPercentile(99.9);
+            case "max":
+                return h.getMax();
+            default:
+                return null;
+        }
+    }
+
+    // metric names are only known at runtime, so the attribute list is rebuilt each time a client asks for it
+    private static class MetricsMBean implements DynamicMBean {
+
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = read(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Long value = read(attribute);
+                if (value != null) {
+                    list.add(new Attribute(attribute, value));
+                }
+            }
+            return list;
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            if (actionName.equals("report")) {
+                return report();
+            }
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String name : new TreeMap<>(counters).keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, "long", "counter", true, false, false));
+            }
+            for (String name : new TreeMap<>(gauges).keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, "long", "gauge", true, false, false));
+            }
+            for (String name : new TreeMap<>(timers).keySet()) {
+                for (String field : TIMER_FIELDS) {
+                    attributes.add(new MBeanAttributeInfo(name + "." + field, "long",
+                            field.equals("count") ? "timer samples" : "timer, nanoseconds", true, false, false));
+                }
+            }
+            MBeanOperationInfo report = new MBeanOperationInfo("report", "the text report", new MBeanParameterInfo[0],
+                    "java.lang.String", MBeanOperationInfo.INFO);
+            return new MBeanInfo(Metrics.class.getName(), "Shop metrics", attributes.toArray(new MBeanAttributeInfo[0]),
+                    null, new MBeanOperationInfo[] { report }, null);
+        }
+    }
+}
+
+// the single thread that writes the shop's files. Tasks run one at a time in submission order, so a journal
+// record never lands before a change queued ahead of it, and a snapshot covers everything submitted earlier.
+// The UI hears back through callbacks on the EDT; a failure is logged and, once a window is set, shown in a dialog.
+class PersistenceExecutor {
+
+    private static final LatencyHistogram QUEUE_TIME = Metrics.timer("persistence.queued");
+    private static final LatencyHistogram TASK_TIME = Metrics.timer("persistence.task");
+
+    private final ExecutorService writer;
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile Component dialogParent;
+
+    public PersistenceExecutor() {
+        writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "persistence-writer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        Metrics.gauge("persistence.pending", new LongSupplier() {
+            public long getAsLong() {
+                return pending.get();
+            }
+        });
+    }
+
+    // failures are shown over this window from now on; until then they are only logged
+    public void setDialogParent(Component parent) {
+        this.dialogParent = parent;
+    }
+
+    public <T> Future<T> submit(String description, Callable<T> task) {
+        return submit(description, task, null);
+    }
+
+    // description completes "Error ..." in the log and the dialog. onDone runs on the EDT with the result,
+    // or with null if the task failed.
+    public <T> Future<T> submit(String description, Callable<T> task, Consumer<T> onDone) {
+        long submitted = System.nanoTime();
+        pending.incrementAndGet();
+        return writer.submit(new Callable<T>() {
+            public T call() throws Exception {
+                long start = System.nanoTime();
+                QUEUE_TIME.record(start - submitted);
+                T result = null;
+                try {
+                    result = task.call();
+                    return result;
+                } catch (Exception e) {
+                    failed(description, e);
+                    throw e;
+                } finally {
+                    pending.decrementAndGet();
+                    TASK_TIME.record(System.nanoTime() - start);
+                    if (onDone != null) {
+                        T outcome = result;
+                        SwingUtilities.invokeLater(new Runnable() {
+                            public void run() {
+                                onDone.accept(outcome);
+                            }
+                        });
+                    }
+                }
+            }
+        });
+    }
+
+    public int getPending() {
+        return pending.get();
+    }
+
+    private void failed(String description, Exception e) {
+        String message = "Error " + description + ": " + e.getMessage();
+        Metrics.error("persistence", message);
+
+        Component parent = dialogParent;
+        if (parent != null) {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    JOptionPane.showMessageDialog(parent, message, "Save failed", JOptionPane.ERROR_MESSAGE);
+                }
+            });
+        }
+    }
+}
+
+// the shop without any UI: catalog, persistence and checkout. The Swing frame and ShopServer are both clients of it.
+class ShopCore {
+
+    private final ProductService productService;
+    private final ProductFileRepository repository;
+    private final CartStore carts;
+    private final PersistenceExecutor persistence;
+
+    // set once the catalog is in memory; until then there is nothing safe to save
+    private final AtomicBoolean loaded = new AtomicBoolean(false);
+
+    public ShopCore(String productsPath, String cartsDirectory, String legacyCartPath) {
+        this.productService = new ProductService();
+        this.repository = new ProductFileRepository(productsPath);
+        this.carts = new CartStore(cartsDirectory, legacyCartPath, productService);
+        this.persistence = new PersistenceExecutor();
+        Metrics.gauge("catalog.products", new LongSupplier() {
+            public long getAsLong() {
+                return productService.size();
+            }
+        });
+    }
+
+    public ProductService getProductService() {
+        return productService;
+    }
+
+    public CartStore getCarts() {
+        return carts;
+    }
+
+    public PersistenceExecutor getPersistence() {
+        return persistence;
+    }
+
+    // blocking; the UI runs it in a SwingWorker
+    public void load() {
+        productService.loadFromFile(repository);
+        productService.addCatalogListener(new ProductJournalWriter(productService, repository, persistence));
+        loaded.set(true);
+    }
+
+    public boolean isLoaded() {
+        return loaded.get();
+    }
+
+    // blocks until the save is on disk; it is queued behind any writes still pending, so it covers them too
+    public void save() {
+        if (!loaded.get()) {
+            return;
+        }
+        Future<Void> saved = persistence.submit("saving the shop", new Callable<Void>() {
+            public Void call() throws IOException {
+                boolean ok = productService.saveToFile(repository);
+                carts.saveAll();
+                if (!ok) {
+                    throw new IOException("the catalog could not be written");
+                }
+                return null;
+            }
+        });
+        try {
+            saved.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // already reported by the executor
+        }
+    }
+
+    public CartService openCart(ShoppingCart cart) {
+        return new CartService(cart, productService);
+    }
+}
+
+// server-side carts, one per session id. Idle sessions are dropped so abandoned carts don't pile up.
+class CartSessions {
+
+    static final long IDLE_TIMEOUT_MS = 30 * 60 * 1000;
+    static final int MAX_SESSIONS = 100_000;
+    private static final long SWEEP_INTERVAL_MS = 60 * 1000;
+
+    // a session's cart is not thread-safe; requests lock the session while they touch it
+    static class Session {
+        final String id;
+        final ShoppingCart cart;
+        final CartService cartService;
+        volatile long lastAccess;
+
+        Session(String id, ShoppingCart cart, CartService cartService) {
+            this.id = id;
+            this.cart = cart;
+            this.cartService = cartService;
+            this.lastAccess = System.currentTimeMillis();
+        }
+    }
+
+    private final ShopCore core;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sweeper;
+
+    public CartSessions(ShopCore core) {
+        this.core = core;
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "cart-session-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sweeper.scheduleWithFixedDelay(this::expireIdle, SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        Metrics.gauge("http.sessions", new LongSupplier() {
+            public long getAsLong() {
+                return sessions.size();
+            }
+        });
+    }
+
+    // null when the server already holds MAX_SESSIONS carts
+    public Session create() {
+        if (sessions.size() >= MAX_SESSIONS) {
+            return null;
+        }
+        ShoppingCart cart = new ShoppingCart();
+        Session session = new Session(UUID.randomUUID().toString(), cart, core.openCart(cart));
+        sessions.put(session.id, session);
+        return session;
+    }
+
+    public Session get(String id) {
+        Session session = id == null ? null : sessions.get(id);
+        if (session != null) {
+            session.lastAccess = System.currentTimeMillis();
+        }
+        return session;
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    public void shutdown() {
+        sweeper.shutdownNow();
+    }
+
+    private void expireIdle() {
+        long cutoff = System.currentTimeMillis() - IDLE_TIMEOUT_MS;
+        sessions.values().removeIf(session -> session.lastAccess < cutoff);
+    }
+}
+
+// headless mode (java Main --server [port]): catalog browse, search, per-session carts and checkout as JSON over HTTP.
+//   GET    /api/products?category=&offset=&limit=     GET /api/products/{id}     GET /api/search?q=&category=
+//   POST   /api/sessions                               -> {"session": id}, sent back as X-Session or ?session=
+//   GET    /api/cart   POST /api/cart/items?product=&quantity=   DELETE /api/cart/items?product=[&quantity=]
+//   POST   /api/checkout
+class ShopServer {
+
+    static final int DEFAULT_PORT = 8080;
+    private static final int DEFAULT_PAGE_SIZE = 50;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final LatencyHistogram REQUEST_TIME = Metrics.timer("http.request");
+
+    private final ShopCore core;
+    private final ProductService productService;
+    private final CartSessions sessions;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public ShopServer(ShopCore core) {
+        this.core = core;
+        this.productService = core.getProductService();
+        this.sessions = new CartSessions(core);
+    }
+
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        executor = newRequestExecutor();
+        server.setExecutor(executor);
+        server.createContext("/api/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                dispatch(exchange);
+            }
+        });
+        server.start();
+        System.out.println("Shop server listening on http://127.0.0.1:" + server.getAddress().getPort() + "/api/");
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+        sessions.shutdown();
+    }
+
+    // a virtual thread per request where the runtime has them (Java 21+), otherwise a bounded platform pool
+    private static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            int threads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+            return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger next = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "shop-http-" + next.incrementAndGet());
+                }
+            });
+        }
+    }
+
+    private void dispatch(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        try {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            Map<String, String> params = readParams(exchange);
+
+            if (method.equals("GET") && path.equals("/api/products")) {
+                listProducts(exchange, params);
+            } else if (method.equals("GET") && path.startsWith("/api/products/")) {
+                getProduct(exchange, path.substring("/api/products/".length()));
+            } else if (method.equals("GET") && path.equals("/api/search")) {
+                search(exchange, params);
+            } else if (method.equals("POST") && path.equals("/api/sessions")) {
+                createSession(exchange);
+            } else if (path.equals("/api/cart") || path.equals("/api/cart/items") || path.equals("/api/checkout")) {
+                CartSessions.Session session = sessions.get(sessionId(exchange, params));
+                if (session == null) {
+                    sendError(exchange, 401, "unknown or expired session");
+                    return;
+                }
+                synchronized (session) {
+                    cartRequest(exchange, method, path, params, session);
+                }
+            } else {
+                sendError(exchange, 404, "no route for " + method + " " + path);
+            }
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+        } catch (RuntimeException e) {
+            Metrics.error("http", "Error handling " + exchange.getRequestURI() + ": " + e);
+            sendError(exchange, 500, "internal error");
+        } finally {
+            exchange.close();
+            REQUEST_TIME.record(System.nanoTime() - start);
+        }
+    }
+
+    private void listProducts(HttpExchange exchange, Map<String, String> params) throws IOException {
+        Category category = parseCategory(params.get("category"));
+        int offset = parseInt(params, "offset", 0);
+        int limit = Math.min(parseInt(params, "limit", DEFAULT_PAGE_SIZE), MAX_PAGE_SIZE);
+
+        int[] total = new int[1];
+        List<Product> page = productService.getProducts(category, offset, limit, total);
+
+        StringBuilder json = new StringBuilder("{\"total\":").append(total[0]).append(",\"products\":");
+        appendProducts(json, page);
+        send(exchange, 200, json.append('}'));
+    }
+
+    private void getProduct(HttpExchange exchange, String id) throws IOException {
+        Product product = productService.findById(ProductId.parse(id));
+        if (product == null) {
+            sendError(exchange, 404, "no product " + id);
+            return;
+        }
+        StringBuilder json = new StringBuilder();
+        appendProduct(json, product);
+        send(exchange, 200, json);
+    }
+
+    private void search(HttpExchange exchange, Map<String, String> params) throws IOException {
+        String query = params.getOrDefault("q", "");
+        Category category = parseCategory(params.get("category"));
+        int limit = Math.min(parseInt(params, "limit", DEFAULT_PAGE_SIZE), MAX_PAGE_SIZE);
+
+        List<Product> matches = productService.search(query, category);
+        // copied so the page doesn't reference a live view after the lock is released
+        List<Product> page = new ArrayList<>(matches.subList(0, Math.min(limit, matches.size())));
+
+        StringBuilder json = new StringBuilder("{\"total\":").append(matches.size()).append(",\"products\":");
+        appendProducts(json, page);
+        send(exchange, 200, json.append('}'));
+    }
+
+    private void createSession(HttpExchange exchange) throws IOException {
+        CartSessions.Session session = sessions.create();
+        if (session == null) {
+            sendError(exchange, 503, "too many sessions");
+            return;
+        }
+        StringBuilder json = new StringBuilder("{\"session\":");
+        appendString(json, session.id);
+        send(exchange, 201, json.append('}'));
+    }
+
+    private void cartRequest(HttpExchange exchange, String method, String path, Map<String, String> params,
+                             CartSessions.Session session) throws IOException {
+        if (method.equals("GET") && path.equals("/api/cart")) {
+            sendCart(exchange, 200, session.cart);
+        } else if (method.equals("POST") && path.equals("/api/cart/items")) {
+            Product product = requireProduct(params);
+            int quantity = parseInt(params, "quantity", 1);
+            if (quantity <= 0) {
+                throw new IllegalArgumentException("quantity must be positive");
+            }
+            if (!session.cartService.addToCart(product, quantity)) {
+                sendError(exchange, 409, "only " + product.getStock() + " in stock");
+                return;
+            }
+            sendCart(exchange, 200, session.cart);
+        } else if (method.equals("DELETE") && path.equals("/api/cart/items")) {
+            Product product = requireProduct(params);
+            if (params.containsKey("quantity")) {
+                session.cart.decreaseProduct(product, parseInt(params, "quantity", 1));
+            } else {
+                session.cartService.removeFromCart(product);
+            }
+            sendCart(exchange, 200, session.cart);
+        } else if (method.equals("POST") && path.equals("/api/checkout")) {
+            long total = session.cart.getTotalPriceCents();
+            if (session.cart.isEmpty()) {
+                sendError(exchange, 409, "cart is empty");
+            } else if (session.cartService.checkout()) {
+                send(exchange, 200, new StringBuilder("{\"ok\":true,\"total\":").append(Money.format(total)).append('}'));
+            } else {
+                sendError(exchange, 409, "insufficient stock for some items");
+            }
+        } else {
+            sendError(exchange, 405, method + " not allowed on " + path);
+        }
+    }
+
+    private Product requireProduct(Map<String, String> params) {
+        String id = params.get("product");
+        if (id == null) {
+            throw new IllegalArgumentException("missing product");
+        }
+        Product product = productService.findById(ProductId.parse(id));
+        if (product == null) {
+            throw new IllegalArgumentException("no product " + id);
+        }
+        return product;
+    }
+
+    private static String sessionId(HttpExchange exchange, Map<String, String> params) {
+        String id = exchange.getRequestHeaders().getFirst("X-Session");
+        return id != null ? id : params.get("session");
+    }
+
+    private static Category parseCategory(String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        try {
+            return Category.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown category '" + value + "'");
+        }
+    }
+
+    private static int parseInt(Map<String, String> params, String name, int defaultValue) {
+        String value = params.get(name);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid " + name + " '" + value + "'");
+        }
+    }
+
+    // query string plus, for POST/DELETE, an application/x-www-form-urlencoded body
+    private static Map<String, String> readParams(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        parseForm(exchange.getRequestURI().getRawQuery(), params);
+        if (!exchange.getRequestMethod().equals("GET")) {
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            if (body.length > 0) {
+                parseForm(new String(body, StandardCharsets.UTF_8), params);
+            }
+        }
+        return params;
+    }
+
+    private static void parseForm(String form, Map<String, String> params) {
+        if (form == null || form.isEmpty()) {
+            return;
+        }
+        for (String pair : form.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void sendCart(HttpExchange exchange, int status, ShoppingCart cart) throws IOException {
+        StringBuilder json = new StringBuilder("{\"items\":[");
+        boolean first = true;
+        for (CartItem item : cart.getItems()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append("{\"id\":");
+            appendString(json, item.getProduct().getId().toString());
+            json.append(",\"name\":");
+            appendString(json, item.getProduct().getName());
+            json.append(",\"quantity\":").append(item.getQuantity())
+                    .append(",\"price\":").append(Money.format(item.getUnitPriceCents()))
+                    .append(",\"total\":").append(Money.format(item.getTotalPriceCents())).append('}');
+        }
+        json.append("],\"total\":").append(Money.format(cart.getTotalPriceCents())).append('}');
+        send(exchange, status, json);
+    }
+
+    private static void appendProducts(StringBuilder json, List<Product> products) {
+        json.append('[');
+        for (int i = 0; i < products.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            appendProduct(json, products.get(i));
+        }
+        json.append(']');
+    }
+
+    private static void appendProduct(StringBuilder json, Product product) {
+        json.append("{\"id\":");
+        appendString(json, product.getId().toString());
+        json.append(",\"name\":");
+        appendString(json, product.getName());
+        json.append(",\"category\":\"").append(product.getCategory()).append('"')
+                .append(",\"price\":").append(Money.format(product.getPriceCents()))
+                .append(",\"stock\":").append(product.getStock())
+                .append(",\"description\":");
+        appendString(json, product.getDescription());
+        json.append('}');
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': json.append("\\\""); break;
+                case '\\': json.append("\\\\"); break;
+                case '\n': json.append("\\n"); break;
+                case '\r': json.append("\\r"); break;
+                case '\t': json.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        StringBuilder json = new StringBuilder("{\"error\":");
+        appendString(json, message);
+        send(exchange, status, json.append('}'));
+    }
+
+    private static void send(HttpExchange exchange, int status, CharSequence json) throws IOException {
+        byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
+
+class ProductTableModel extends AbstractTableModel implements ProductCatalogListener {
+
+    private static final long serialVersionUID = 1L;
+    private static final String[] COLUMNS = { "ID", "Name", "Category", "Price", "Stock", "Image" };
+
+    private final ProductService productService;
+    private final int columnCount;
+
+    // either the catalog view itself or a filtered copy owned by this model
+    private List<Product> rows;
+    private Map<ProductId, Integer> filteredRowIndex;
+
+    public ProductTableModel(ProductService productService, boolean showImageColumn) {
+        this.productService = productService;
+        this.columnCount = showImageColumn ? COLUMNS.length : COLUMNS.length - 1;
+        this.rows = productService.getAllProducts();
+        productService.addCatalogListener(this);
+    }
+
+    public void showAll() {
+        rows = productService.getAllProducts();
+        filteredRowIndex = null;
+        fireTableDataChanged();
+    }
+
+    public void showProducts(List<Product> products) {
+        if (products == productService.getAllProducts()) {
+            showAll();
+            return;
+        }
+        // mapped views materialize lazily, so they are not copied
+        rows = products instanceof MappedProductCatalog.IndexedView ? products : new ArrayList<>(products);
+        filteredRowIndex = null;
+        fireTableDataChanged();
+    }
+
+    public Product getProductAt(int row) {
+        return rows.get(row);
+    }
+
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    public boolean isCellEditable(int row, int column) {
+        return false;
+    }
+
+    public Object getValueAt(int row, int column) {
+        Product p = rows.get(row);
+        switch (column) {
+            case 0: return p.getId();
+            case 1: return p.getName();
+            case 2: return p.getCategory();
+            case 3: return Money.format(p.getPriceCents());
+            case 4: return p.getStock();
+            default: return p.getImagePath();
+        }
+    }
+
+    public void productAdded(Product product, int index) {
+        if (isShowingAll()) {
+            fireTableRowsInserted(index, index);
+        }
+    }
+
+    public void productRemoved(Product product, int index) {
+        if (isShowingAll()) {
+            fireTableRowsDeleted(index, index);
+            return;
+        }
+
+        int row = rowOf(product);
+        if (row >= 0) {
+            if (!(rows instanceof ArrayList)) {
+                rows = new ArrayList<>(rows);
+            }
+            rows.remove(row);
+            filteredRowIndex = null;
+            fireTableRowsDeleted(row, row);
+        }
+    }
+
+    public void productUpdated(Product product) {
+        // checkouts report stock changes from their own threads
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    productUpdated(product);
+                }
+            });
+            return;
+        }
+
+        int row = rowOf(product);
+        if (row >= 0) {
+            fireTableRowsUpdated(row, row);
+        }
+    }
+
+    public void catalogReloaded() {
+        // the catalog is loaded on a background thread at startup
+        if (SwingUtilities.isEventDispatchThread()) {
+            showAll();
+        } else {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    showAll();
+                }
+            });
+        }
+    }
+
+    private boolean isShowingAll() {
+        return rows == productService.getAllProducts();
+    }
+
+    private int rowOf(Product product) {
+        if (isShowingAll()) {
+            return productService.indexOf(product.getId());
+        }
+        if (rows instanceof MappedProductCatalog.IndexedView) {
+            return ((MappedProductCatalog.IndexedView) rows).rowOf(product.getId());
+        }
+
+        if (filteredRowIndex == null) {
+            filteredRowIndex = new HashMap<>();
+            for (int i = 0; i < rows.size(); i++) {
+                filteredRowIndex.put(rows.get(i).getId(), i);
+            }
+        }
+        Integer row = filteredRowIndex.get(product.getId());
+        return row == null ? -1 : row;
+    }
+}
+
+class ThumbnailStore {
+
+    public static final String DEFAULT_DIR = "images/thumbs";
+
+    public static final int PREVIEW_WIDTH = 180;
+    public static final int PREVIEW_HEIGHT = 180;
+    public static final int BANNER_WIDTH = 700;
+    public static final int BANNER_HEIGHT = 120;
+
+    private final File dir;
+
+    public ThumbnailStore(String dirPath) {
+        this.dir = new File(dirPath);
+    }
+
+    // pre-scaled derivative if it is there and up to date, otherwise scale the original and write it
+    public BufferedImage load(String originalPath, int w, int h) {
+        File original = new File(originalPath);
+        File derivative = derivativeFile(originalPath, w, h);
+
+        if (derivative.exists() && derivative.lastModified() >= original.lastModified()) {
+            try {
+                BufferedImage image = ImageIO.read(derivative);
+                if (image != null && image.getWidth() == w && image.getHeight() == h) {
+                    return image;
+                }
+            } catch (IOException e) {
+                // unreadable derivative, regenerate it below
+            }
+        }
+
+        return generate(originalPath, w, h);
+    }
+
+    public BufferedImage generate(String originalPath, int w, int h) {
+        BufferedImage scaled = ThumbnailCache.decodeScaled(originalPath, w, h);
+        if (scaled == null) {
+            return null;
+        }
+
+        if (!dir.exists() && !dir.mkdirs()) {
+            return scaled;
+        }
+
+        // load and prefetch can generate the same derivative at once, so each writes its own temp file
+        // and renames it into place; a reader never sees a half-written png
+        File derivative = derivativeFile(originalPath, w, h);
+        File temp = null;
+        try {
+            temp = File.createTempFile(derivative.getName(), ".tmp", dir);
+            ImageIO.write(scaled, "png", temp);
+            try {
+                Files.move(temp.toPath(), derivative.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), derivative.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            Metrics.error("thumbnail", "Error writing thumbnail " + derivative + ": " + e.getMessage());
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+        return scaled;
+    }
+
+    // keyed by the whole file name plus a hash of the full path, so photo.jpg and photo.png (or two
+    // photo.jpg in different folders) don't share a derivative
+    private File derivativeFile(String originalPath, int w, int h) {
+        File original = new File(originalPath);
+        String pathHash = Integer.toHexString(original.getAbsolutePath().hashCode());
+        return new File(dir, original.getName() + "_" + pathHash + "_" + w + "x" + h + ".png");
+    }
+}
+
+class ThumbnailCache {
+
+    private static final long MAX_CACHE_BYTES = 64L * 1024 * 1024;
+    private static final int DECODE_THREADS = 2;
+    private static final LatencyHistogram DECODE_TIME = Metrics.timer("image.decode");
+    private static final LongAdder HITS = Metrics.counter("image.cacheHits");
+    private static final LongAdder MISSES = Metrics.counter("image.cacheMisses");
+
+    private final ThumbnailStore store;
+    private final ExecutorService pool;
+
+    // access-ordered, so iteration starts at the least recently used thumbnail
+    private final LinkedHashMap<String, ImageIcon> cache;
+    private final Set<String> pending;
+    private long cachedBytes;
+
+    public ThumbnailCache(ThumbnailStore store) {
+        this.store = store;
+        cache = new LinkedHashMap<>(64, 0.75f, true);
+        pending = new HashSet<>();
+        pool = Executors.newFixedThreadPool(DECODE_THREADS, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "thumbnail-loader");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public synchronized ImageIcon getIfCached(String path, int w, int h) {
+        return cache.get(key(path, w, h));
+    }
+
+    // decodes in the background; callback runs on the EDT with the thumbnail, or null if it can't be read
+    public void load(String path, int w, int h, Consumer<ImageIcon> callback) {
+        String key = key(path, w, h);
+        ImageIcon cached;
+        synchronized (this) {
+            cached = cache.get(key);
+        }
+        if (cached != null) {
+            HITS.increment();
+            callback.accept(cached);
+            return;
+        }
+        MISSES.increment();
+
+        pool.execute(new Runnable() {
+            public void run() {
+                ImageIcon icon = getOrDecode(key, path, w, h);
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        callback.accept(icon);
+                    }
+                });
+            }
+        });
+    }
+
+    public void prefetch(String path, int w, int h) {
+        String key = key(path, w, h);
+        synchronized (this) {
+            if (cache.containsKey(key) || !pending.add(key)) {
+                return;
+            }
+        }
+
+        pool.execute(new Runnable() {
+            public void run() {
+                try {
+                    getOrDecode(key, path, w, h);
+                } finally {
+                    synchronized (ThumbnailCache.this) {
+                        pending.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+    private ImageIcon getOrDecode(String key, String path, int w, int h) {
+        synchronized (this) {
+            ImageIcon cached = cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        BufferedImage scaled = store.load(path, w, h);
+        if (scaled == null) {
+            return null;
+        }
+
+        ImageIcon icon = new ImageIcon(scaled);
+        synchronized (this) {
+            if (cache.put(key, icon) == null) {
+                cachedBytes += (long) w * h * 4;
+            }
+            Iterator<ImageIcon> eldest = cache.values().iterator();
+            while (cachedBytes > MAX_CACHE_BYTES && eldest.hasNext()) {
+                ImageIcon evicted = eldest.next();
+                cachedBytes -= (long) evicted.getIconWidth() * evicted.getIconHeight() * 4;
+                eldest.remove();
+            }
+        }
+        return icon;
     }
 
-    public void saveProducts(List<Product> products) {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(filePath))) {
-
-            for (Product product : products) {
+    static BufferedImage decodeScaled(String path, int w, int h) {
+        long start = System.nanoTime();
+        try {
+            File f = new File(path);
+            if (!f.exists()) return null;
 
-                String imagePath = product.getImagePath();
-                if (imagePath == null) {
-                    imagePath = "";
-                }
+            BufferedImage original = readImage(f);
+            if (original == null) return null;
 
-                String line = product.getId() + ";" + product.getName() + ";" + product.getCategory() + ";" +
-                        product.getPrice() + ";" + product.getStock() + ";" + product.getDescription() + ";" + imagePath;
+            return scale(original, w, h);
+        } catch (Exception e) {
+            return null;
+        } finally {
+            DECODE_TIME.record(System.nanoTime() - start);
+        }
+    }
 
-                writer.println(line);
+    // ImageIO rejects some JPEGs (e.g. CMYK) that the AWT toolkit still decodes, so fall back to it
+    private static BufferedImage readImage(File f) {
+        try {
+            BufferedImage image = ImageIO.read(f);
+            if (image != null) {
+                return image;
             }
-
         } catch (IOException e) {
-            System.out.println("Error saving products to file.");
+            // try the toolkit below
         }
+
+        Image img = new ImageIcon(f.getPath()).getImage();
+        int w = img.getWidth(null);
+        int h = img.getHeight(null);
+        if (w <= 0 || h <= 0) {
+            return null;
+        }
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.drawImage(img, 0, 0, null);
+        g.dispose();
+        return image;
     }
 
-    public List<Product> loadProducts() {
-        List<Product> products = new ArrayList<>();
+    // halves the image step by step before the final resize, close to SCALE_SMOOTH quality but much cheaper
+    static BufferedImage scale(BufferedImage image, int w, int h) {
+        int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
 
-        File file = new File(filePath);
-        if (!file.exists()) {
-            return products;
+        BufferedImage current = image;
+        while (current.getWidth() / 2 >= w && current.getHeight() / 2 >= h) {
+            current = draw(current, current.getWidth() / 2, current.getHeight() / 2, type);
         }
+        return draw(current, w, h, type);
+    }
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+    private static BufferedImage draw(BufferedImage image, int w, int h, int type) {
+        BufferedImage result = new BufferedImage(w, h, type);
+        Graphics2D g = result.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g.drawImage(image, 0, 0, w, h, null);
+        g.dispose();
+        return result;
+    }
 
-            String line;
-            while ((line = reader.readLine()) != null) {
+    private static String key(String path, int w, int h) {
+        return path + "@" + w + "x" + h;
+    }
+}
 
-                String[] parts = line.split(";");
+// replaces the system event queue to time every EDT dispatch. A sampler thread takes the EDT's stack while a
+// dispatch runs past the threshold, so each stall is charged to the listener that was entered (the outermost
+// app frame) and to where it was stuck (the innermost one). Stalls are logged as they finish; report() is
+// the totals per listener. -Dshop.edtStallMs sets the threshold, 0 turns the watchdog off.
+//
+// A listener that shows a dialog pumps events inside its own dispatch. Its time is only what it spends
+// itself: nested dispatches are charged to their own listeners, and waiting for the next event (the user
+// reading the dialog) is not counted, so the work before and after the dialog still shows up.
+class EdtWatchdog extends EventQueue {
+
+    static final long STALL_THRESHOLD_MS = Long.getLong("shop.edtStallMs", 100);
+    private static final int MAX_STACK_FRAMES = 40;
+    private static final int HOT_FRAMES_REPORTED = 3;
+
+    private static final LatencyHistogram DISPATCH_TIME = Metrics.timer("ui.dispatch");
+    private static final LatencyHistogram STALL_TIME = Metrics.timer("ui.stall");
+    private static final LongAdder STALLS = Metrics.counter("ui.stalls");
+
+    // one event being dispatched; samples are added by the sampler thread
+    private static class Dispatch {
+        final AWTEvent event;
+        final long start;
+        final Dispatch outer;
+        // time inside nested dispatches and waiting for events in a nested loop; only the EDT writes these
+        volatile long excludedNanos;
+        volatile boolean waiting;
+        StackTraceElement[] firstStack;
+        final Map<String, Integer> hotFrames = new HashMap<>();
+
+        Dispatch(AWTEvent event, long start, Dispatch outer) {
+            this.event = event;
+            this.start = start;
+            this.outer = outer;
+        }
+    }
 
-                if (parts.length != 7) {
-                    continue;
-                }
+    private static class Stats {
+        int stalls;
+        long totalNanos;
+        long maxNanos;
+        final Map<String, Integer> hotFrames = new HashMap<>();
+    }
 
-                String id = parts[0];
-                String name = parts[1];
-                Category category = Category.valueOf(parts[2]);
-                double price = Double.parseDouble(parts[3]);
-                int stock = Integer.parseInt(parts[4]);
-                String description = parts[5];
-                String imagepath = parts[6];
-                if (imagepath != null && imagepath.trim().isEmpty()) {
-                    imagepath = null;
-                }
+    private final long thresholdNanos;
+    private volatile Thread edt;
+    private volatile Dispatch current;
+    // by listener; only the EDT writes, report() may read from elsewhere
+    private final Map<String, Stats> stats = new LinkedHashMap<>();
+
+    private EdtWatchdog(long thresholdMs) {
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMs);
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "edt-watchdog");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(5, thresholdMs / 4);
+        sampler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                sample();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
 
-                Product product = new Product(id, name, category, price, stock, description);
-                product.setImagePath(imagepath);
+    // null when disabled
+    public static EdtWatchdog install() {
+        if (STALL_THRESHOLD_MS <= 0) {
+            return null;
+        }
+        EdtWatchdog watchdog = new EdtWatchdog(STALL_THRESHOLD_MS);
+        Toolkit.getDefaultToolkit().getSystemEventQueue().push(watchdog);
+        return watchdog;
+    }
 
-                products.add(product);
+    protected void dispatchEvent(AWTEvent event) {
+        edt = Thread.currentThread();
+        Dispatch outer = current;
+        Dispatch dispatch = new Dispatch(event, System.nanoTime(), outer);
+        current = dispatch;
+        try {
+            super.dispatchEvent(event);
+        } finally {
+            current = outer;
+            long wall = System.nanoTime() - dispatch.start;
+            if (outer != null) {
+                outer.excludedNanos += wall;
+            }
+            long own = wall - dispatch.excludedNanos;
+            DISPATCH_TIME.record(own);
+            if (own >= thresholdNanos) {
+                stalled(dispatch, own);
             }
-
-        } catch (IOException e) {
-            System.out.println("Error loading products from file.");
         }
+    }
 
-        return products;
+    // a nested loop (modal dialog, SecondaryLoop) waits here; that idle time belongs to nobody
+    public AWTEvent getNextEvent() throws InterruptedException {
+        Dispatch dispatch = current;
+        if (dispatch == null || Thread.currentThread() != edt) {
+            return super.getNextEvent();
+        }
+        long start = System.nanoTime();
+        dispatch.waiting = true;
+        try {
+            return super.getNextEvent();
+        } finally {
+            dispatch.waiting = false;
+            dispatch.excludedNanos += System.nanoTime() - start;
+        }
     }
-}
 
-class CartFileRepository {
+    public synchronized String report() {
+        StringBuilder out = new StringBuilder("EDT stalls over " + STALL_THRESHOLD_MS + " ms by listener:\n");
+        if (stats.isEmpty()) {
+            out.append("  none\n");
+        }
+        List<Map.Entry<String, Stats>> entries = new ArrayList<>(stats.entrySet());
+        entries.sort(Comparator.comparingLong((Map.Entry<String, Stats> e) -> -e.getValue().totalNanos));
+        for (Map.Entry<String, Stats> entry : entries) {
+            Stats s = entry.getValue();
+            out.append(String.format("  %-48s %4d stalls, total %7d ms, max %6d ms%n", entry.getKey(), s.stalls,
+                    s.totalNanos / 1_000_000, s.maxNanos / 1_000_000));
+            for (Map.Entry<String, Integer> frame : top(s.hotFrames)) {
+                out.append("      ").append(frame.getValue()).append(" samples in ").append(frame.getKey()).append('\n');
+            }
+        }
+        return out.toString();
+    }
 
-    private final String filePath;
+    private void sample() {
+        Dispatch dispatch = current;
+        Thread thread = edt;
+        if (dispatch == null || thread == null || dispatch.waiting
+                || System.nanoTime() - dispatch.start - dispatch.excludedNanos < thresholdNanos) {
+            return;
+        }
 
-    public CartFileRepository(String filePath) {
-        this.filePath = filePath;
+        StackTraceElement[] stack = thread.getStackTrace();
+        synchronized (dispatch) {
+            // the EDT may have moved on, or gone idle in a nested loop, while the stack was taken
+            if (current != dispatch || isWaiting(stack)) {
+                return;
+            }
+            if (dispatch.firstStack == null) {
+                dispatch.firstStack = stack;
+            }
+            dispatch.hotFrames.merge(hotFrame(stack), 1, Integer::sum);
+        }
     }
 
-    public void saveCart(ShoppingCart cart) {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(filePath))) {
-            for (CartItem item : cart.getItems()) {
-                String line = item.getProduct().getId() + ";" + item.getQuantity();
-                writer.println(line);
+    private void stalled(Dispatch dispatch, long elapsed) {
+        STALLS.increment();
+        STALL_TIME.record(elapsed);
+
+        StackTraceElement[] stack;
+        Map<String, Integer> hotFrames;
+        synchronized (dispatch) {
+            stack = dispatch.firstStack;
+            hotFrames = new HashMap<>(dispatch.hotFrames);
+        }
+        String listener = stack != null ? listenerFrame(stack) : describe(dispatch.event);
+
+        boolean first;
+        synchronized (this) {
+            Stats s = stats.get(listener);
+            first = s == null;
+            if (first) {
+                s = new Stats();
+                stats.put(listener, s);
+            }
+            s.stalls++;
+            s.totalNanos += elapsed;
+            s.maxNanos = Math.max(s.maxNanos, elapsed);
+            for (Map.Entry<String, Integer> frame : hotFrames.entrySet()) {
+                s.hotFrames.merge(frame.getKey(), frame.getValue(), Integer::sum);
+            }
+        }
+
+        System.out.println("EDT stalled " + elapsed / 1_000_000 + " ms in " + listener
+                + (stack != null ? " at " + hotFrame(stack) : ""));
+        // the full stack once per listener; later stalls only add to the report
+        if (first && stack != null) {
+            for (int i = 0; i < Math.min(stack.length, MAX_STACK_FRAMES); i++) {
+                System.out.println("\tat " + stack[i]);
             }
-        } catch (IOException e) {
-            System.out.println("Error saving cart to file: " + e.getMessage());
         }
     }
 
-    public ShoppingCart loadCart(ProductService productService) {
-        ShoppingCart cart = new ShoppingCart();
+    // frames from the JDK and from this queue are plumbing; everything else is the app
+    private static boolean isAppFrame(StackTraceElement frame) {
+        String c = frame.getClassName();
+        return !(c.startsWith("java.") || c.startsWith("javax.") || c.startsWith("sun.") || c.startsWith("jdk.")
+                || c.startsWith("com.sun.") || c.startsWith(EdtWatchdog.class.getName()));
+    }
 
-        File file = new File(filePath);
-        if (!file.exists()) {
-            return cart;
+    // true when the innermost of this queue's frames is getNextEvent, i.e. the EDT is idle
+    private static boolean isWaiting(StackTraceElement[] stack) {
+        for (StackTraceElement frame : stack) {
+            if (frame.getClassName().equals(EdtWatchdog.class.getName())) {
+                return frame.getMethodName().equals("getNextEvent");
+            }
         }
+        return false;
+    }
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(";");
-                if (parts.length != 2) continue;
-
-                String productId = parts[0].trim();
-                int qty;
-                try {
-                    qty = Integer.parseInt(parts[1].trim());
-                } catch (NumberFormatException ex) {
-                    continue;
-                }
+    // the outermost app frame of the innermost dispatch, without its line so one listener is one row: the
+    // listener or Runnable the event was delivered to. Frames below that dispatch belong to the listener that
+    // opened the nested loop. A lambda's generated class has no source line, so its body (the next frame in)
+    // stands for it.
+    private static String listenerFrame(StackTraceElement[] stack) {
+        int end = stack.length;
+        for (int i = 0; i < stack.length; i++) {
+            if (stack[i].getClassName().equals(EdtWatchdog.class.getName()) && stack[i].getMethodName().equals("dispatchEvent")) {
+                end = i;
+                break;
+            }
+        }
+        for (int i = end - 1; i >= 0; i--) {
+            if (isAppFrame(stack[i]) && !stack[i].getClassName().contains("$$Lambda")) {
+                String c = stack[i].getClassName();
+                return c.substring(c.lastIndexOf('.') + 1) + "." + stack[i].getMethodName();
+            }
+        }
+        return stack.length > 0 ? frameName(stack[0]) : "unknown";
+    }
 
-                Product p = productService.findById(productId);
-                if (p == null) {
-                    continue;
-                }
+    // the innermost app frame, plus the JDK call it is waiting in if there is one
+    private static String hotFrame(StackTraceElement[] stack) {
+        for (int i = 0; i < stack.length; i++) {
+            if (isAppFrame(stack[i])) {
+                return i == 0 ? frameName(stack[i]) : frameName(stack[i]) + " > " + frameName(stack[0]);
+            }
+        }
+        return stack.length > 0 ? frameName(stack[0]) : "unknown";
+    }
 
-                if (p.getStock() < qty) {
-                    qty = p.getStock();
-                }
+    private static String frameName(StackTraceElement frame) {
+        String c = frame.getClassName();
+        return c.substring(c.lastIndexOf('.') + 1) + "." + frame.getMethodName()
+                + (frame.getLineNumber() > 0 ? ":" + frame.getLineNumber() : "");
+    }
 
-                if (qty > 0) {
-                    cart.addProduct(p, qty);
-                }
+    // for stalls that ended before a sample was taken: the event type and the listeners it went to
+    private static String describe(AWTEvent event) {
+        Object source = event.getSource();
+        if (source instanceof AbstractButton) {
+            StringBuilder names = new StringBuilder();
+            for (ActionListener listener : ((AbstractButton) source).getActionListeners()) {
+                names.append(names.length() == 0 ? "" : ",").append(listener.getClass().getName());
+            }
+            if (names.length() > 0) {
+                return names.toString();
             }
-        } catch (IOException e) {
-            System.out.println("Error loading cart from file: " + e.getMessage());
         }
+        return event.getClass().getSimpleName() + " on " + (source == null ? "null" : source.getClass().getSimpleName());
+    }
 
-        return cart;
+    private static List<Map.Entry<String, Integer>> top(Map<String, Integer> counts) {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>(counts.entrySet());
+        entries.sort(Comparator.comparingInt((Map.Entry<String, Integer> e) -> -e.getValue()));
+        return entries.subList(0, Math.min(HOT_FRAMES_REPORTED, entries.size()));
     }
 }
 
@@ -601,12 +5088,15 @@ class LoginPanel extends JPanel {
     private JTextField usernameField;
     private JPasswordField passwordField;
     private JButton loginButton;
+    private JLabel statusLabel;
 
     private AuthService authService;
     private MainFrame mainFrame;
+    private CustomerPanel customerPanel;
 
-    public LoginPanel(MainFrame mainFrame) {
+    public LoginPanel(MainFrame mainFrame, CustomerPanel customerPanel) {
         this.mainFrame = mainFrame;
+        this.customerPanel = customerPanel;
         this.authService = new AuthService();
 
         setLayout(new GridBagLayout());
@@ -640,6 +5130,10 @@ class LoginPanel extends JPanel {
         gbc.gridx = 0; gbc.gridy++; gbc.gridwidth = 2;
         add(loginButton, gbc);
 
+        statusLabel = new JLabel(" ", SwingConstants.CENTER);
+        gbc.gridy++;
+        add(statusLabel, gbc);
+
         loginButton.addActionListener(new ActionListener() {
 
             public void actionPerformed(ActionEvent e) {
@@ -648,6 +5142,11 @@ class LoginPanel extends JPanel {
         });
     }
 
+    public void setLoading(boolean loading) {
+        loginButton.setEnabled(!loading);
+        statusLabel.setText(loading ? "Loading catalog..." : " ");
+    }
+
     private void handleLogin() {
         String username = usernameField.getText();
         String password = new String(passwordField.getPassword());
@@ -658,6 +5157,7 @@ class LoginPanel extends JPanel {
             mainFrame.showPanel(MainFrame.ADMIN);
         }
         else if (role == AuthService.Role.CUSTOMER) {
+            customerPanel.login(username);
             mainFrame.showPanel(MainFrame.CUSTOMER);
         }
         else {
@@ -673,20 +5173,24 @@ class LoginPanel extends JPanel {
 
 class AdminPanel extends JPanel {
 
+    private static final int COPY_BUFFER_SIZE = 256 * 1024;
+
     private ProductService productService;
-    private ProductFileRepository repository;
+    private ThumbnailStore thumbnailStore;
+    private PersistenceExecutor persistence;
 
     private JTable table;
-    private DefaultTableModel tableModel;
+    private ProductTableModel tableModel;
 
     private JButton addButton;
     private JButton deleteButton;
     private JButton addImageButton;
     private JButton editButton;
 
-    public AdminPanel(ProductService productService, ProductFileRepository repository) {
+    public AdminPanel(ProductService productService, PersistenceExecutor persistence) {
         this.productService = productService;
-        this.repository = repository;
+        this.persistence = persistence;
+        this.thumbnailStore = new ThumbnailStore(ThumbnailStore.DEFAULT_DIR);
 
         setLayout(new BorderLayout(10, 10));
         setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
@@ -698,13 +5202,7 @@ class AdminPanel extends JPanel {
     }
 
     private void initTable() {
-        String[] columns = { "ID", "Name", "Category", "Price", "Stock", "Image"};
-
-        tableModel = new DefaultTableModel(columns, 0) {
-            public boolean isCellEditable(int row, int column) {
-                return false;
-            }
-        };
+        tableModel = new ProductTableModel(productService, true);
 
         table = new JTable(tableModel);
         JScrollPane scrollPane = new JScrollPane(table);
@@ -768,10 +5266,10 @@ class AdminPanel extends JPanel {
         String priceStr = JOptionPane.showInputDialog(this, "Price:");
         String stockStr = JOptionPane.showInputDialog(this, "Stock:");
 
-        double price;
+        long price;
         int stock;
         try {
-            price = Double.parseDouble(priceStr);
+            price = Money.parse(priceStr);
             stock = Integer.parseInt(stockStr);
         } catch (NumberFormatException ex) {
             JOptionPane.showMessageDialog(this, "Price or stock must be a number");
@@ -780,10 +5278,6 @@ class AdminPanel extends JPanel {
 
         Product product = new Product(name, categoryEnum , price, stock, "");
         productService.addProduct(product);
-
-        productService.saveToFile(repository);
-
-        refreshTable();
     }
 
     private void deleteProduct() {
@@ -793,12 +5287,8 @@ class AdminPanel extends JPanel {
             return;
         }
 
-        String id = (String) tableModel.getValueAt(selectedRow, 0);
+        ProductId id = tableModel.getProductAt(selectedRow).getId();
         productService.removeProductById(id);
-
-        productService.saveToFile(repository);
-
-        refreshTable();
     }
 
     private void chooseImage() {
@@ -813,49 +5303,48 @@ class AdminPanel extends JPanel {
 
         if (result == JFileChooser.APPROVE_OPTION) {
             File chosenFile = chooser.getSelectedFile();
+            ProductId id = tableModel.getProductAt(selectedRow).getId();
 
-            String relativePath = copyFileToImages(chosenFile);
-
-            if (relativePath == null) {
-                JOptionPane.showMessageDialog(this, "Failed to copy image to images/ folder.", "Error", JOptionPane.ERROR_MESSAGE);
-                return;
-            }
-
-            String id = (String) tableModel.getValueAt(selectedRow, 0);
-
-            productService.setProductImage(id, relativePath);
-
-            productService.saveToFile(repository);
-
-            refreshTable();
+            copyImage(chosenFile, relativePath -> {
+                if (relativePath != null) {
+                    productService.setProductImage(id, relativePath);
+                }
+            });
         }
     }
 
     private void refreshTable() {
-        tableModel.setRowCount(0);
-
-        for (Product p : productService.getAllProducts()) {
-            tableModel.addRow(new Object[]{
-                    p.getId(),
-                    p.getName(),
-                    p.getCategory(),
-                    p.getPrice(),
-                    p.getStock(),
-                    p.getImagePath()
-            });
-        }
+        tableModel.showAll();
     }
 
-    private String copyFileToImages(File sourceFile) {
-        if (sourceFile == null) return null;
+    // copies on the persistence thread; onCopied gets the images/ path on the EDT, or null if the copy failed
+    // (the executor reports why) or was cancelled. Large files get a progress dialog.
+    private void copyImage(File sourceFile, Consumer<String> onCopied) {
+        ProgressMonitor progress = new ProgressMonitor(this, "Copying " + sourceFile.getName(), null, 0, 100);
+        persistence.submit("copying " + sourceFile.getName(), new Callable<String>() {
+            public String call() throws IOException {
+                try {
+                    return copyFileToImages(sourceFile, progress);
+                } finally {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            progress.close();
+                        }
+                    });
+                }
+            }
+        }, onCopied);
+    }
 
+    // runs on the persistence thread; null if cancelled
+    private String copyFileToImages(File sourceFile, ProgressMonitor progress) throws IOException {
         String imagesDirName = "images";
         File imagesDir = new File(imagesDirName);
 
         if (!imagesDir.exists()) {
             boolean ok = imagesDir.mkdirs();
             if (!ok) {
-                return null;
+                throw new IOException("could not create the images/ folder");
             }
         }
 
@@ -870,14 +5359,47 @@ class AdminPanel extends JPanel {
 
         Path destPath = Paths.get(imagesDirName, uniqueName);
 
-        try {
-            Files.copy(sourceFile.toPath(), destPath, StandardCopyOption.REPLACE_EXISTING);
-            return imagesDirName + "/" + uniqueName;
-
-        } catch (IOException ex) {
-            ex.printStackTrace();
+        long size = sourceFile.length();
+        long copied = 0;
+        int shown = 0;
+        boolean cancelled = false;
+        try (InputStream in = Files.newInputStream(sourceFile.toPath());
+             OutputStream out = Files.newOutputStream(destPath)) {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                if (progress.isCanceled()) {
+                    cancelled = true;
+                    break;
+                }
+                out.write(buffer, 0, n);
+                copied += n;
+
+                int percent = size > 0 ? (int) Math.min(100, copied * 100 / size) : 100;
+                if (percent != shown) {
+                    shown = percent;
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            progress.setProgress(percent);
+                        }
+                    });
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(destPath);
+            throw e;
+        }
+        if (cancelled) {
+            Files.deleteIfExists(destPath);
             return null;
         }
+
+        String relativePath = imagesDirName + "/" + uniqueName;
+
+        // customers load this pre-scaled preview instead of rescaling the original every session
+        thumbnailStore.generate(relativePath, ThumbnailStore.PREVIEW_WIDTH, ThumbnailStore.PREVIEW_HEIGHT);
+
+        return relativePath;
     }
 
     private void editProduct() {
@@ -888,7 +5410,7 @@ class AdminPanel extends JPanel {
         }
 
         int modelRow = table.convertRowIndexToModel(selectedRow);
-        String id = (String) tableModel.getValueAt(modelRow, 0);
+        ProductId id = tableModel.getProductAt(modelRow).getId();
 
         Product product = productService.findById(id);
         if (product == null) {
@@ -920,7 +5442,7 @@ class AdminPanel extends JPanel {
         gbc.gridx = 0; gbc.gridy++;
         form.add(new JLabel("Price:"), gbc);
         gbc.gridx = 1;
-        JTextField priceField = new JTextField(String.valueOf(product.getPrice()), 10);
+        JTextField priceField = new JTextField(Money.format(product.getPriceCents()), 10);
         form.add(priceField, gbc);
 
 
@@ -955,6 +5477,9 @@ class AdminPanel extends JPanel {
         final String[] newImagePath = new String[1];
         newImagePath[0] = product.getImagePath();
 
+        // a copy can outlast the dialog: if it was confirmed by then, the image is set on the product directly
+        final boolean[] dialogOpen = { true };
+        final boolean[] updated = { false };
 
         changeImgBtn.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
@@ -962,13 +5487,20 @@ class AdminPanel extends JPanel {
                 int result = chooser.showOpenDialog(AdminPanel.this);
                 if (result == JFileChooser.APPROVE_OPTION) {
                     File chosen = chooser.getSelectedFile();
-                    String rel = copyFileToImages(chosen);
-                    if (rel != null) {
-                        newImagePath[0] = rel;
-                        imgLabel.setText(rel);
-                    } else {
-                        JOptionPane.showMessageDialog(AdminPanel.this, "Failed to copy image.", "Error", JOptionPane.ERROR_MESSAGE);
-                    }
+                    changeImgBtn.setEnabled(false);
+                    imgLabel.setText("Copying " + chosen.getName() + "...");
+
+                    copyImage(chosen, rel -> {
+                        changeImgBtn.setEnabled(true);
+                        if (rel == null) {
+                            imgLabel.setText(newImagePath[0] == null ? "No image" : newImagePath[0]);
+                        } else if (dialogOpen[0]) {
+                            newImagePath[0] = rel;
+                            imgLabel.setText(rel);
+                        } else if (updated[0]) {
+                            productService.setProductImage(product.getId(), rel);
+                        }
+                    });
                 }
             }
         });
@@ -981,6 +5513,7 @@ class AdminPanel extends JPanel {
                 JOptionPane.OK_CANCEL_OPTION,
                 JOptionPane.PLAIN_MESSAGE
         );
+        dialogOpen[0] = false;
 
         if (option == JOptionPane.OK_OPTION) {
             String newName = nameField.getText().trim();
@@ -991,10 +5524,10 @@ class AdminPanel extends JPanel {
 
             Category newCategory = (Category) categoryBox.getSelectedItem();
 
-            double newPrice;
+            long newPrice;
             int newStock;
             try {
-                newPrice = Double.parseDouble(priceField.getText().trim());
+                newPrice = Money.parse(priceField.getText());
                 newStock = Integer.parseInt(stockField.getText().trim());
             } catch (NumberFormatException ex) {
                 JOptionPane.showMessageDialog(this, "Price or stock is invalid");
@@ -1004,16 +5537,8 @@ class AdminPanel extends JPanel {
             String newDesc = descArea.getText().trim();
 
 
-            product.setName(newName);
-            product.setCategory(newCategory);
-            product.setPrice(newPrice);
-            product.setStock(newStock);
-            product.setDescription(newDesc);
-            product.setImagePath(newImagePath[0]);
-
-
-            productService.saveToFile(repository);
-            refreshTable();
+            productService.updateProduct(product, newName, newCategory, newPrice, newStock, newDesc, newImagePath[0]);
+            updated[0] = true;
 
             JOptionPane.showMessageDialog(this, "Product updated successfully");
         }
@@ -1026,11 +5551,13 @@ class CustomerPanel extends JPanel {
     private ProductService productService;
     private ShoppingCart cart;
     private CartService cartService;
-    private ProductFileRepository repository;
-    private CartFileRepository cartRepository;
+    private CartStore carts;
+    private PersistenceExecutor persistence;
+    // null until a customer logs in; the panel shows an empty cart until then
+    private String username;
 
     private JTable productTable;
-    private DefaultTableModel productTableModel;
+    private ProductTableModel productTableModel;
 
     private JTable cartTable;
     private DefaultTableModel cartTableModel;
@@ -1041,22 +5568,31 @@ class CustomerPanel extends JPanel {
     private JComboBox<String> categoryFilterBox;
     private JPanel searchPanel;
 
+    // key releases restart the timer, the query itself runs in filterWorker
+    private static final int FILTER_DELAY_MS = 150;
+    private Timer filterTimer;
+    private SwingWorker<List<Product>, Void> filterWorker;
+
     private JButton addToCartButton;
     private JButton removeFromCartButton;
     private JButton checkoutButton;
 
     private JLabel headerImageLabel;
-    private static final int HEADER_HEIGHT = 120;
+    private static final int HEADER_HEIGHT = ThumbnailStore.BANNER_HEIGHT;
 
     private JLabel imagePreview;
-    private static final int PREVIEW_WIDTH = 180;
-    private static final int PREVIEW_HEIGHT = 180;
+    private static final int PREVIEW_WIDTH = ThumbnailStore.PREVIEW_WIDTH;
+    private static final int PREVIEW_HEIGHT = ThumbnailStore.PREVIEW_HEIGHT;
+    private static final int PREFETCH_ROWS = 2;
 
-    public CustomerPanel(ProductService productService, ProductFileRepository repository, CartFileRepository cartRepository) {
+    private final ThumbnailCache thumbnails = new ThumbnailCache(new ThumbnailStore(ThumbnailStore.DEFAULT_DIR));
+    private String previewPath;
+
+    public CustomerPanel(ProductService productService, CartStore carts, PersistenceExecutor persistence) {
         this.productService = productService;
-        this.repository = repository;
-        this.cartRepository = cartRepository;
-        this.cart = cartRepository.loadCart(productService);
+        this.carts = carts;
+        this.persistence = persistence;
+        this.cart = new ShoppingCart();
         this.cartService = new CartService(this.cart, productService);
 
         setLayout(new BorderLayout(10, 10));
@@ -1069,6 +5605,35 @@ class CustomerPanel extends JPanel {
         refreshProducts();
         refreshCart();
 
+        // the cart keeps a running total, so price edits made by an admin are pushed into it
+        productService.addCatalogListener(new ProductCatalogListener() {
+            public void productAdded(Product product, int index) {
+            }
+
+            public void productRemoved(Product product, int index) {
+            }
+
+            public void productUpdated(Product product) {
+                // checkouts report stock changes from their own threads, and the cart is only touched on the EDT
+                if (!SwingUtilities.isEventDispatchThread()) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            productUpdated(product);
+                        }
+                    });
+                    return;
+                }
+
+                if (cart.getQuantity(product) > 0) {
+                    cart.repriceProduct(product);
+                    refreshCart();
+                }
+            }
+
+            public void catalogReloaded() {
+            }
+        });
+
         productTable.getSelectionModel().addListSelectionListener(new ListSelectionListener() {
             public void valueChanged(ListSelectionEvent e) {
                 if (!e.getValueIsAdjusting()) {
@@ -1085,15 +5650,7 @@ class CustomerPanel extends JPanel {
 
     private void initProductTable() {
 
-        String[] columns = {
-                "ID", "Name", "Category", "Price", "Stock"
-        };
-
-        productTableModel = new DefaultTableModel(columns, 0) {
-            public boolean isCellEditable(int r, int c) {
-                return false;
-            }
-        };
+        productTableModel = new ProductTableModel(productService, false);
 
         productTable = new JTable(productTableModel);
 
@@ -1119,7 +5676,7 @@ class CustomerPanel extends JPanel {
 
         searchField.addKeyListener(new java.awt.event.KeyAdapter() {
             public void keyReleased(java.awt.event.KeyEvent e) {
-                updateProductFilter();
+                scheduleProductFilter();
             }
         });
 
@@ -1223,7 +5780,7 @@ class CustomerPanel extends JPanel {
 
             searchField.addKeyListener(new java.awt.event.KeyAdapter() {
                 public void keyReleased(java.awt.event.KeyEvent e) {
-                    updateProductFilter();
+                    scheduleProductFilter();
                 }
             });
             categoryFilterBox.addActionListener(new ActionListener() {
@@ -1258,7 +5815,7 @@ class CustomerPanel extends JPanel {
             return;
         }
 
-        String productId = (String) productTableModel.getValueAt(row, 0);
+        ProductId productId = productTableModel.getProductAt(row).getId();
         Product product = productService.findById(productId);
 
         if (product == null) {
@@ -1272,47 +5829,70 @@ class CustomerPanel extends JPanel {
         }
 
         cartService.addToCart(product, 1);
-        cartRepository.saveCart(cart);
+        carts.saveLine(username, product);
 
-        refreshProducts();
         refreshCart();
     }
 
+    private void scheduleProductFilter() {
+        if (filterTimer == null) {
+            filterTimer = new Timer(FILTER_DELAY_MS, new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    updateProductFilter();
+                }
+            });
+            filterTimer.setRepeats(false);
+        }
+        filterTimer.restart();
+    }
+
     private void updateProductFilter() {
+        if (filterTimer != null) {
+            filterTimer.stop();
+        }
+
         String txt = "";
         if (searchField != null && searchField.getText() != null) {
-            txt = searchField.getText().trim().toLowerCase();
+            txt = searchField.getText().trim();
         }
 
-        String categorySelected = null;
+        Category category = null;
         if (categoryFilterBox != null && categoryFilterBox.getSelectedItem() != null) {
-            categorySelected = ((String) categoryFilterBox.getSelectedItem());
+            String categorySelected = (String) categoryFilterBox.getSelectedItem();
+            if (!"All".equals(categorySelected)) {
+                category = Category.valueOf(categorySelected);
+            }
         }
 
-        productTableModel.setRowCount(0);
+        if (filterWorker != null) {
+            filterWorker.cancel(true);
+        }
 
-        for (Product p : productService.getAllProducts()) {
-            if (categorySelected != null && !"All".equals(categorySelected)) {
-                if (!p.getCategory().name().equals(categorySelected)) {
-                    continue;
-                }
+        final String query = txt;
+        final Category filterCategory = category;
+
+        filterWorker = new SwingWorker<List<Product>, Void>() {
+            protected List<Product> doInBackground() {
+                return productService.filterProducts(query, filterCategory, this::isCancelled);
             }
 
-            if (!txt.isEmpty()) {
-                String nameLower = p.getName() == null ? "" : p.getName().toLowerCase();
-                if (!nameLower.contains(txt)) {
-                    continue;
+            protected void done() {
+                // a newer query has replaced this one, drop its result
+                if (isCancelled() || filterWorker != this) {
+                    return;
+                }
+                try {
+                    showFilteredProducts(get());
+                } catch (Exception ex) {
+                    System.out.println("Error filtering products: " + ex.getMessage());
                 }
             }
+        };
+        filterWorker.execute();
+    }
 
-            productTableModel.addRow(new Object[]{
-                    p.getId(),
-                    p.getName(),
-                    p.getCategory(),
-                    p.getPrice(),
-                    p.getStock()
-            });
-        }
+    private void showFilteredProducts(List<Product> matches) {
+        productTableModel.showProducts(matches);
 
         if (productTable.getRowCount() > 0) {
             productTable.setRowSelectionInterval(0, 0);
@@ -1329,17 +5909,14 @@ class CustomerPanel extends JPanel {
             return;
         }
 
-        String productId = (String) cartTableModel.getValueAt(viewRow, 0);
+        ProductId productId = (ProductId) cartTableModel.getValueAt(viewRow, 0);
 
-        for (CartItem item : cart.getItems()) {
-            if (item.getProduct().getId().equals(productId)) {
-                cart.decreaseProduct(item.getProduct(), 1);
-                cartRepository.saveCart(cart);
-                break;
-            }
+        CartItem item = cart.getItem(productId);
+        if (item != null) {
+            cart.decreaseProduct(item.getProduct(), 1);
+            carts.saveLine(username, item.getProduct());
         }
 
-        refreshProducts();
         refreshCart();
     }
 
@@ -1357,11 +5934,10 @@ class CustomerPanel extends JPanel {
         );
 
         if (confirm == JOptionPane.YES_OPTION) {
-            boolean success = cartService.checkout(repository);
+            boolean success = cartService.checkout();
             if (success) {
-                refreshProducts();
                 refreshCart();
-                cartRepository.saveCart(cart);
+                carts.save(username);
                 JOptionPane.showMessageDialog(this, "Purchase successful!");
             } else {
                 JOptionPane.showMessageDialog(this, "Purchase failed: insufficient stock for some items.");
@@ -1370,17 +5946,7 @@ class CustomerPanel extends JPanel {
     }
 
     private void refreshProducts() {
-        productTableModel.setRowCount(0);
-
-        for (Product p : productService.getAllProducts()) {
-            productTableModel.addRow(new Object[]{
-                    p.getId(),
-                    p.getName(),
-                    p.getCategory(),
-                    p.getPrice(),
-                    p.getStock()
-            });
-        }
+        productTableModel.showAll();
 
         if (productTable.getRowCount() > 0) {
             productTable.setRowSelectionInterval(0, 0);
@@ -1399,12 +5965,12 @@ class CustomerPanel extends JPanel {
                     p.getId(),
                     p.getName(),
                     item.getQuantity(),
-                    item.getTotalPrice()
+                    Money.format(item.getTotalPriceCents())
             });
         }
 
         totalPriceLabel.setText(
-                "Total: " + cart.getTotalPrice()
+                "Total: " + Money.format(cart.getTotalPriceCents())
         );
     }
 
@@ -1416,7 +5982,7 @@ class CustomerPanel extends JPanel {
             return;
         }
 
-        String productId = (String) productTableModel.getValueAt(row, 0);
+        ProductId productId = productTableModel.getProductAt(row).getId();
         Product p = productService.findById(productId);
         if (p == null) {
             showNoImage();
@@ -1429,46 +5995,111 @@ class CustomerPanel extends JPanel {
             return;
         }
 
-        ImageIcon icon = createScaledImageIcon(path, PREVIEW_WIDTH, PREVIEW_HEIGHT);
-        if (icon != null) {
+        showPreview(path);
+        prefetchAround(row);
+    }
+
+    private void showPreview(String path) {
+        previewPath = path;
+
+        ImageIcon cached = thumbnails.getIfCached(path, PREVIEW_WIDTH, PREVIEW_HEIGHT);
+        if (cached != null) {
             imagePreview.setText("");
-            imagePreview.setIcon(icon);
-        } else {
-            showNoImage();
+            imagePreview.setIcon(cached);
+            return;
+        }
+
+        imagePreview.setIcon(null);
+        imagePreview.setText("Loading...");
+        thumbnails.load(path, PREVIEW_WIDTH, PREVIEW_HEIGHT, icon -> {
+            // the selection moved on while this one was decoding
+            if (!path.equals(previewPath)) {
+                return;
+            }
+            if (icon != null) {
+                imagePreview.setText("");
+                imagePreview.setIcon(icon);
+            } else {
+                showNoImage();
+            }
+        });
+    }
+
+    private void prefetchAround(int row) {
+        for (int r = row - PREFETCH_ROWS; r <= row + PREFETCH_ROWS; r++) {
+            if (r == row || r < 0 || r >= productTableModel.getRowCount()) {
+                continue;
+            }
+            String path = productTableModel.getProductAt(r).getImagePath();
+            if (path != null && !path.trim().isEmpty()) {
+                thumbnails.prefetch(path, PREVIEW_WIDTH, PREVIEW_HEIGHT);
+            }
         }
     }
 
     private void showNoImage() {
+        previewPath = null;
         imagePreview.setIcon(null);
         imagePreview.setText("No Image");
     }
 
-    private ImageIcon createScaledImageIcon(String path, int w, int h) {
-        try {
-            File f = new File(path);
-            if (!f.exists()) return null;
+    private void setHeaderImage(String path) {
+        thumbnails.load(path, ThumbnailStore.BANNER_WIDTH, HEADER_HEIGHT, icon -> {
+            if (icon != null) {
+                headerImageLabel.setText("");
+                headerImageLabel.setIcon(icon);
+            } else {
+                headerImageLabel.setIcon(null);
+                headerImageLabel.setText("Welcome to the Store");
+            }
+        });
+    }
 
-            ImageIcon original = new ImageIcon(path);
-            Image img = original.getImage();
-            Image scaled = img.getScaledInstance(w, h, Image.SCALE_SMOOTH);
-            return new ImageIcon(scaled);
-        } catch (Exception e) {
-            return null;
-        }
+    public ShoppingCart getShoppingCart() {
+        return this.cart;
     }
 
-    private void setHeaderImage(String path) {
-        ImageIcon icon = createScaledImageIcon(path, 700, HEADER_HEIGHT);
-        if (icon != null) {
-            headerImageLabel.setText("");
-            headerImageLabel.setIcon(icon);
-        } else {
-            headerImageLabel.setIcon(null);
-            headerImageLabel.setText("Welcome to the Store");
+    // the panel is built before the catalog finishes loading; carts are only opened at login, after it
+    public void catalogLoaded() {
+        refreshProducts();
+        refreshCart();
+    }
+
+    public void login(String username) {
+        if (username.equals(this.username)) {
+            return;
         }
+        if (this.username != null) {
+            carts.close(this.username);
+        }
+
+        // the saved cart is read on the persistence thread; until it arrives the panel shows an empty, locked cart
+        this.username = username;
+        this.cart = new ShoppingCart();
+        this.cartService = new CartService(this.cart, productService);
+        setCartEnabled(false);
+        refreshCart();
+
+        persistence.submit("loading the cart of " + username, () -> carts.open(username), loaded -> {
+            if (!username.equals(this.username)) {
+                // someone else logged in meanwhile
+                if (loaded != null) {
+                    carts.close(username);
+                }
+                return;
+            }
+            if (loaded != null) {
+                this.cart = loaded;
+                this.cartService = new CartService(loaded, productService);
+            }
+            setCartEnabled(true);
+            refreshCart();
+        });
     }
 
-    public ShoppingCart getShoppingCart() {
-        return this.cart;
+    private void setCartEnabled(boolean enabled) {
+        addToCartButton.setEnabled(enabled);
+        removeFromCartButton.setEnabled(enabled);
+        checkoutButton.setEnabled(enabled);
     }
 }
\ No newline at end of file